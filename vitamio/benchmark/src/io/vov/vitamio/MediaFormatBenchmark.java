@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Time and retained heap of {@link MediaFormat}, which keeps the values of
+ * the well-known keys unboxed, against the HashMap it used before. Each
+ * iteration creates an audio, a video and a subtitle format, as one track
+ * listing does, and reads them back, including a missing key with a default.
+ * Runs on a plain JVM, see benchmark/README.md.
+ */
+public class MediaFormatBenchmark {
+	private static final int ITERATIONS = 2000000;
+	private static final int RETAINED = 100000;
+	private static final int ROUNDS = 5;
+
+	/** The map-backed MediaFormat, reduced to the calls measured. */
+	private static final class MapFormat {
+		private final Map<String, Object> mMap = new HashMap<String, Object>();
+
+		int getInteger(String name) {
+			return ((Integer) mMap.get(name)).intValue();
+		}
+
+		int getInteger(String name, int defaultValue) {
+			try {
+				return getInteger(name);
+			} catch (NullPointerException e) {
+			} catch (ClassCastException e) {
+			}
+			return defaultValue;
+		}
+
+		String getString(String name) {
+			return (String) mMap.get(name);
+		}
+
+		void setInteger(String name, int value) {
+			mMap.put(name, Integer.valueOf(value));
+		}
+
+		void setString(String name, String value) {
+			mMap.put(name, value);
+		}
+
+		static MapFormat createAudioFormat(String mime, int sampleRate, int channelCount) {
+			MapFormat format = new MapFormat();
+			format.setString(MediaFormat.KEY_MIME, mime);
+			format.setInteger(MediaFormat.KEY_SAMPLE_RATE, sampleRate);
+			format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, channelCount);
+			return format;
+		}
+
+		static MapFormat createVideoFormat(String mime, int width, int height) {
+			MapFormat format = new MapFormat();
+			format.setString(MediaFormat.KEY_MIME, mime);
+			format.setInteger(MediaFormat.KEY_WIDTH, width);
+			format.setInteger(MediaFormat.KEY_HEIGHT, height);
+			return format;
+		}
+
+		static MapFormat createSubtitleFormat(String title, String language) {
+			MapFormat format = new MapFormat();
+			format.setString(MediaFormat.KEY_TITLE, title);
+			format.setString(MediaFormat.KEY_LANGUAGE, language);
+			return format;
+		}
+	}
+
+	public static void main(String[] args) {
+		for (int round = 0; round < ROUNDS; round++) {
+			runHashMap();
+			runEntries();
+		}
+	}
+
+	private static void runHashMap() {
+		long start = System.nanoTime();
+		long sum = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			MapFormat audio = MapFormat.createAudioFormat("audio/mp4a-latm", 44100 + (i & 7), 2);
+			MapFormat video = MapFormat.createVideoFormat("video/avc", 1280, 720 + (i & 7));
+			MapFormat subtitle = MapFormat.createSubtitleFormat("Track " + (i & 63), "eng");
+			sum += audio.getInteger(MediaFormat.KEY_SAMPLE_RATE) + audio.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+					+ video.getInteger(MediaFormat.KEY_HEIGHT) + video.getInteger(MediaFormat.KEY_BIT_RATE, 0)
+					+ subtitle.getString(MediaFormat.KEY_LANGUAGE).length();
+		}
+		long nanos = System.nanoTime() - start;
+
+		long heap = usedHeap();
+		MapFormat[] formats = new MapFormat[RETAINED];
+		for (int i = 0; i < RETAINED; i++)
+			formats[i] = MapFormat.createAudioFormat("audio/mp4a-latm", 44100 + i, 2);
+		long retained = usedHeap() - heap;
+		report("HashMap", nanos, retained, sum + formats.length);
+	}
+
+	private static void runEntries() {
+		long start = System.nanoTime();
+		long sum = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			MediaFormat audio = MediaFormat.createAudioFormat("audio/mp4a-latm", 44100 + (i & 7), 2);
+			MediaFormat video = MediaFormat.createVideoFormat("video/avc", 1280, 720 + (i & 7));
+			MediaFormat subtitle = MediaFormat.createSubtitleFormat("Track " + (i & 63), "eng");
+			sum += audio.getInteger(MediaFormat.KEY_SAMPLE_RATE) + audio.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+					+ video.getInteger(MediaFormat.KEY_HEIGHT) + video.getInteger(MediaFormat.KEY_BIT_RATE, 0)
+					+ subtitle.getString(MediaFormat.KEY_LANGUAGE).length();
+		}
+		long nanos = System.nanoTime() - start;
+
+		long heap = usedHeap();
+		MediaFormat[] formats = new MediaFormat[RETAINED];
+		for (int i = 0; i < RETAINED; i++)
+			formats[i] = MediaFormat.createAudioFormat("audio/mp4a-latm", 44100 + i, 2);
+		long retained = usedHeap() - heap;
+		report("entries", nanos, retained, sum + formats.length);
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void report(String name, long nanos, long retained, long checksum) {
+		System.out.printf("%-7s %6.1f ns/iteration  %4d bytes/audio format  (checksum %d)%n", name, (double) nanos
+				/ ITERATIONS, retained / RETAINED, checksum);
+	}
+}
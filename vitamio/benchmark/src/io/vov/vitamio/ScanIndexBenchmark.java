@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Prescan time, retained heap and lookup time of {@link ScanIndex} against
+ * the HashMap of canonical, lower-cased paths {@link MediaScanner} used
+ * before, for a library of 50,000 files.
+ * <p>
+ * The files are created empty under a temporary directory, so that
+ * canonicalization hits the file system as it does on a device. Runs on a
+ * plain JVM, see benchmark/README.md.
+ * </p>
+ */
+public class ScanIndexBenchmark {
+	private static final int FOLDERS = 500;
+	private static final int FILES_PER_FOLDER = 100;
+	private static final int ROUNDS = 5;
+
+	/** The row the old file cache kept per path, without its table Uri. */
+	private static class FileCacheEntry {
+		long mRowId;
+		String mPath;
+		long mLastModified;
+		boolean mLastModifiedChanged;
+		boolean mSeenInFileSystem;
+
+		FileCacheEntry(long rowId, String path, long lastModified) {
+			mRowId = rowId;
+			mPath = path;
+			mLastModified = lastModified;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		File root = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "scanindex-benchmark");
+		List<String> paths = createFiles(root);
+		for (int round = 0; round < ROUNDS; round++) {
+			runHashMap(paths);
+			runScanIndex(paths);
+		}
+	}
+
+	private static List<String> createFiles(File root) throws IOException {
+		List<String> paths = new ArrayList<String>(FOLDERS * FILES_PER_FOLDER);
+		for (int d = 0; d < FOLDERS; d++) {
+			File folder = new File(root, String.format("Folder%03d", d));
+			if (!folder.isDirectory() && !folder.mkdirs())
+				throw new IOException("Can't create " + folder);
+			for (int f = 0; f < FILES_PER_FOLDER; f++) {
+				File file = new File(folder, String.format("Video Clip %03d.MP4", f));
+				file.createNewFile();
+				paths.add(file.getAbsolutePath());
+			}
+		}
+		return paths;
+	}
+
+	private static void runHashMap(List<String> paths) {
+		long heap = usedHeap();
+		long start = System.nanoTime();
+		HashMap<String, FileCacheEntry> cache = new HashMap<String, FileCacheEntry>();
+		long rowId = 1;
+		for (String path : paths) {
+			String canonical = canonical(new String(path));
+			cache.put(canonical.toLowerCase(), new FileCacheEntry(rowId++, canonical, 1000));
+		}
+		long built = System.nanoTime();
+		long retained = usedHeap() - heap;
+
+		long lookupStart = System.nanoTime();
+		int hits = 0;
+		for (String path : paths) {
+			// beginFile canonicalized every path, then looked it up lower-cased
+			canonical(path);
+			if (cache.get(path.toLowerCase()) != null)
+				hits++;
+		}
+		report("HashMap", built - start, retained, System.nanoTime() - lookupStart, hits, cache.size());
+	}
+
+	private static void runScanIndex(List<String> paths) {
+		long heap = usedHeap();
+		long start = System.nanoTime();
+		ScanIndex index = new ScanIndex(true, paths.size());
+		long rowId = 1;
+		// A cursor hands out a new string per row
+		for (String path : paths)
+			index.add(new String(path), rowId++, 1000);
+		index.seal();
+		long built = System.nanoTime();
+		long retained = usedHeap() - heap;
+
+		long lookupStart = System.nanoTime();
+		int hits = 0;
+		for (String path : paths)
+			if (index.find(path) >= 0)
+				hits++;
+		report("ScanIndex", built - start, retained, System.nanoTime() - lookupStart, hits, index.size());
+	}
+
+	private static String canonical(String path) {
+		File file = new File(path);
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void report(String name, long buildNanos, long retained, long lookupNanos, int hits, int size) {
+		System.out.printf("%-9s prescan %6.1f ms  retained %6d KB  lookups %6.1f ms  hits %d/%d%n", name,
+				buildNanos / 1e6, retained / 1024, lookupNanos / 1e6, hits, size);
+	}
+}
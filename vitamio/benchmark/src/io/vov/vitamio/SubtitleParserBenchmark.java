@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Parse throughput of {@link SubtitleParser} on large synthetic SubRip,
+ * SubStation Alpha and SAMI files, as long as a multi-hour movie with dense
+ * subtitles.
+ * <p>
+ * The files are written to a temporary directory and deleted afterwards. See
+ * benchmark/README.md.
+ * </p>
+ */
+public class SubtitleParserBenchmark {
+	private static final int CUES = 100000;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws IOException {
+		File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+		File srt = new File(dir, "subtitle-benchmark.srt");
+		File ass = new File(dir, "subtitle-benchmark.ass");
+		File smi = new File(dir, "subtitle-benchmark.smi");
+		try {
+			writeSrt(srt);
+			writeAss(ass);
+			writeSami(smi);
+			for (int round = 0; round < ROUNDS; round++) {
+				run(srt);
+				run(ass);
+				run(smi);
+			}
+		} finally {
+			srt.delete();
+			ass.delete();
+			smi.delete();
+		}
+	}
+
+	private static void run(File file) throws IOException {
+		long start = System.nanoTime();
+		SubtitleParser.Cues cues = SubtitleParser.parse(file, null);
+		long nanos = System.nanoTime() - start;
+		double mb = file.length() / (1024.0 * 1024.0);
+		System.out.printf("%-4s %6.1f MB  %6d cues  %7.1f ms  %6.1f MB/s%n", file.getName().substring(
+				file.getName().lastIndexOf('.') + 1), mb, cues.count, nanos / 1e6, mb * 1e9 / nanos);
+	}
+
+	private static void writeSrt(File file) throws IOException {
+		Writer out = open(file);
+		try {
+			for (int i = 0; i < CUES; i++) {
+				long start = i * 1000L;
+				out.write(String.valueOf(i + 1));
+				out.write('\n');
+				out.write(time(start, ','));
+				out.write(" --> ");
+				out.write(time(start + 900, ','));
+				out.write("\nLine number " + i + " of the subtitle, with some text\nand a second line\n\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeAss(File file) throws IOException {
+		Writer out = open(file);
+		try {
+			out.write("[Script Info]\nScriptType: v4.00+\n\n[V4+ Styles]\nFormat: Name, Fontname, Fontsize\n"
+					+ "Style: Default,Arial,20\n\n[Events]\n"
+					+ "Format: Layer, Start, End, Style, Name, MarginL, MarginR, MarginV, Effect, Text\n");
+			for (int i = 0; i < CUES; i++) {
+				long start = i * 1000L;
+				out.write("Dialogue: 0,");
+				out.write(assTime(start));
+				out.write(',');
+				out.write(assTime(start + 900));
+				out.write(",Default,,0,0,0,,{\\pos(10,10)\\b1}Line number " + i + " with some text\\Nsecond line\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeSami(File file) throws IOException {
+		Writer out = open(file);
+		try {
+			out.write("<SAMI>\n<HEAD>\n<STYLE TYPE=\"text/css\">\nP { font-family: Arial; }\n"
+					+ ".ENCC { Name: English; lang: en-US; }\n</STYLE>\n</HEAD>\n<BODY>\n");
+			for (int i = 0; i < CUES; i++) {
+				long start = i * 1000L;
+				out.write("<SYNC Start=" + start + "><P Class=ENCC>Line number " + i
+						+ " with some text<br>second line &amp; more\n");
+				out.write("<SYNC Start=" + (start + 900) + "><P Class=ENCC>&nbsp;\n");
+			}
+			out.write("</BODY>\n</SAMI>\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static Writer open(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+	}
+
+	/**
+	 * @return hh:mm:ss followed by the separator and milliseconds
+	 */
+	private static String time(long ms, char separator) {
+		return String.format("%02d:%02d:%02d%c%03d", ms / 3600000, ms / 60000 % 60, ms / 1000 % 60, separator,
+				ms % 1000);
+	}
+
+	/**
+	 * @return h:mm:ss.cc, with centiseconds
+	 */
+	private static String assTime(long ms) {
+		return String.format("%d:%02d:%02d.%02d", ms / 3600000, ms / 60000 % 60, ms / 1000 % 60, ms % 1000 / 10);
+	}
+}
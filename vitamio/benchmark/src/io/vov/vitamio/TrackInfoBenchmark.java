@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.util.SparseArray;
+
+/**
+ * Time of {@link MediaPlayer#parseTrackInfo(byte[], String)} against the
+ * regular expression splits it replaced, on the descriptors of a file with 40
+ * subtitle tracks.
+ * <p>
+ * Loading {@link MediaPlayer} loads the native libraries, so call
+ * {@link #main(String[])} from an application once Vitamio is initialized,
+ * see benchmark/README.md.
+ * </p>
+ */
+public class TrackInfoBenchmark {
+	private static final int TRACKS = 40;
+	private static final int ITERATIONS = 20000;
+	private static final int ROUNDS = 5;
+	private static final String ENCODING = "UTF-8";
+	private static final String[] LANGUAGES = { "eng", "fre", "ger", "spa", "ita", "jpn", "chi", "kor" };
+
+	public static void main(String[] args) throws Exception {
+		byte[] tracks = descriptors();
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			long splits = 0;
+			for (int i = 0; i < ITERATIONS; i++)
+				splits += checksum(parseWithSplit(tracks, ENCODING));
+			long splitNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long scans = 0;
+			for (int i = 0; i < ITERATIONS; i++)
+				scans += checksum(MediaPlayer.parseTrackInfo(tracks, ENCODING));
+			long scanNanos = System.nanoTime() - start;
+
+			if (splits != scans)
+				throw new IllegalStateException("The parsers disagree: " + splits + " != " + scans);
+			System.out.printf("split %6.2f us/parse  scan %6.2f us/parse%n", splitNanos / 1e3 / ITERATIONS,
+					scanNanos / 1e3 / ITERATIONS);
+		}
+	}
+
+	/**
+	 * @return the descriptors of {@link #TRACKS} tracks, with and without a
+	 *         title, as the native player reports them
+	 */
+	private static byte[] descriptors() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int track = 0; track < TRACKS; track++) {
+			if (track > 0)
+				sb.append("!#!");
+			sb.append(track + 2).append('.').append(LANGUAGES[track % LANGUAGES.length]);
+			if (track % 4 != 3)
+				sb.append(".Subtitles ").append(track).append(" (Forced, SDH)");
+		}
+		return sb.toString().getBytes(ENCODING);
+	}
+
+	private static long checksum(SparseArray<MediaFormat> tracks) {
+		long sum = 0;
+		for (int i = 0; i < tracks.size(); i++) {
+			MediaFormat format = tracks.valueAt(i);
+			sum = sum * 31 + tracks.keyAt(i);
+			sum = sum * 31 + format.getString(MediaFormat.KEY_LANGUAGE).hashCode();
+			sum = sum * 31 + format.getString(MediaFormat.KEY_TITLE).hashCode();
+		}
+		return sum;
+	}
+
+	/** The parser MediaPlayer used before. */
+	private static SparseArray<MediaFormat> parseWithSplit(byte[] tracks, String encoding) throws Exception {
+		SparseArray<MediaFormat> trackSparse = new SparseArray<MediaFormat>();
+		String trackString = new String(tracks, encoding);
+		for (String s : trackString.split("!#!")) {
+			try {
+				MediaFormat mediaFormat = null;
+				String[] formats = s.split("\\.");
+				int trackNum = Integer.parseInt(formats[0]);
+				if (formats.length == 3)
+					mediaFormat = MediaFormat.createSubtitleFormat(formats[2], formats[1]);
+				else if (formats.length == 2)
+					mediaFormat = MediaFormat.createSubtitleFormat("", formats[1]);
+				trackSparse.put(trackNum, mediaFormat);
+			} catch (NumberFormatException e) {
+			}
+		}
+		return trackSparse;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.provider;
+
+import android.net.Uri;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read throughput of {@link MiniThumbFile} against the number of reader
+ * threads, plus a stress pass with readers running next to a writer.
+ * <p>
+ * The thumbnails go to their own files under the thumbnails directory of the
+ * external storage, named after {@link #URI}, so the files of the media
+ * provider are left alone. Run it on a device, see benchmark/README.md.
+ * </p>
+ */
+public class MiniThumbFileBenchmark {
+	private static final Uri URI = Uri.parse("content://io.vov.vitamio.benchmark/videos/thumbnails");
+	private static final int THUMBNAILS = 5000;
+	private static final int MAX_THUMBNAIL_SIZE = 10000;
+	private static final long RUN_NANOS = 2000000000L;
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 2 * Runtime.getRuntime().availableProcessors();
+
+		MiniThumbFile.reset();
+		MiniThumbFile file = MiniThumbFile.instance(URI);
+		Random random = new Random(1);
+		for (int id = 1; id <= THUMBNAILS; id++) {
+			byte[] data = new byte[3000 + random.nextInt(4000)];
+			random.nextBytes(data);
+			file.saveMiniThumbToFile(data, id, id * 7);
+		}
+		// Start from a fresh instance, as a new process would
+		MiniThumbFile.reset();
+		file = MiniThumbFile.instance(URI);
+
+		System.out.printf("stress: %d missed reads%n", stress(file, 4));
+		for (int threads = 1; threads <= maxThreads; threads *= 2)
+			System.out.printf("threads=%d %.0f reads/s%n", threads, readsPerSecond(file, threads));
+		file.deactivate();
+	}
+
+	/**
+	 * Read existing thumbnails on several threads while one thread keeps
+	 * saving others again.
+	 *
+	 * @return the reads that found no thumbnail, which should be 0
+	 */
+	private static int stress(final MiniThumbFile file, int readers) throws InterruptedException {
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicInteger missed = new AtomicInteger();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				byte[] data = new byte[2000];
+				for (int i = THUMBNAILS + 1; !stop.get(); i++) {
+					Arrays.fill(data, (byte) i);
+					try {
+						file.saveMiniThumbToFile(data, i % 200 + 1, i);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		};
+		writer.start();
+		Thread[] threads = new Thread[readers];
+		for (int t = 0; t < readers; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					byte[] data = new byte[MAX_THUMBNAIL_SIZE];
+					Random random = new Random();
+					for (int i = 0; i < 100000; i++) {
+						long id = random.nextInt(THUMBNAILS) + 1;
+						if (file.getMagic(id) == 0 || file.getMiniThumbFromFile(id, data) == null)
+							missed.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		stop.set(true);
+		writer.join();
+		return missed.get();
+	}
+
+	private static double readsPerSecond(final MiniThumbFile file, int count) throws InterruptedException {
+		final long deadline = System.nanoTime() + RUN_NANOS;
+		final AtomicLong reads = new AtomicLong();
+		Thread[] threads = new Thread[count];
+		for (int t = 0; t < count; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					byte[] data = new byte[MAX_THUMBNAIL_SIZE];
+					Random random = new Random();
+					long n = 0;
+					while (System.nanoTime() < deadline) {
+						for (int i = 0; i < 100; i++) {
+							long id = random.nextInt(THUMBNAILS) + 1;
+							file.getMagic(id);
+							file.getMiniThumbFromFile(id, data);
+						}
+						n += 100;
+					}
+					reads.addAndGet(n);
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		return reads.get() * 1e9 / RUN_NANOS;
+	}
+}
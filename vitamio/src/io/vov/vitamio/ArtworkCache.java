@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import io.vov.vitamio.utils.Crypto;
+import io.vov.vitamio.utils.IOUtils;
+import io.vov.vitamio.utils.Log;
+import io.vov.vitamio.utils.SettableFuture;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Embedded artwork, as returned by
+ * {@link MediaMetadataRetriever#getEmbeddedPicture()}, decoded to the size it
+ * is displayed at.
+ * <p>
+ * Pictures are decoded with the largest power of two
+ * {@link BitmapFactory.Options#inSampleSize} that keeps them at least as big
+ * as the requested size. The results are kept in memory up to a byte limit
+ * and on disk, keyed by the file's path, size and modification time, so a
+ * cover is extracted and decoded once. Concurrent requests for the same
+ * picture share one decode, which is cancelled only when all of them are.
+ * </p>
+ */
+public final class ArtworkCache {
+	private static final String SUFFIX = ".art";
+
+	private final RetrieverPool mPool;
+	private final Executor mDiskExecutor;
+	private final File mDir;
+	private final long mMaxDiskBytes;
+	private final int mMaxMemoryBytes;
+
+	private final LinkedHashMap<String, Bitmap> mMemory = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+	private int mMemoryBytes;
+	/** Disk file name to size, in least recently used order. */
+	private final LinkedHashMap<String, Long> mDiskFiles = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long mDiskBytes;
+	/** Work in progress, shared by the requests for the same key. */
+	private final HashMap<String, Work> mPending = new HashMap<String, Work>();
+
+	/**
+	 * @param pool
+	 *            extracts the pictures of files not cached yet
+	 * @param diskExecutor
+	 *            reads the disk cache, e.g. a single background thread
+	 * @param dir
+	 *            the disk cache directory
+	 * @param maxMemoryBytes
+	 *            the size of the decoded bitmaps kept in memory
+	 * @param maxDiskBytes
+	 *            the size the disk cache is trimmed to
+	 */
+	public ArtworkCache(RetrieverPool pool, Executor diskExecutor, File dir, int maxMemoryBytes, long maxDiskBytes) {
+		mPool = pool;
+		mDiskExecutor = diskExecutor;
+		mDir = dir;
+		mMaxMemoryBytes = maxMemoryBytes;
+		mMaxDiskBytes = maxDiskBytes;
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			Log.e("ArtworkCache: can't create %s", dir);
+		File[] files = dir.listFiles();
+		if (files != null) {
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(File lhs, File rhs) {
+					long l = lhs.lastModified();
+					long r = rhs.lastModified();
+					return l < r ? -1 : (l == r ? 0 : 1);
+				}
+			});
+			for (File f : files) {
+				if (f.getName().endsWith(SUFFIX)) {
+					mDiskFiles.put(f.getName(), f.length());
+					mDiskBytes += f.length();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the artwork if it is in memory, null otherwise
+	 */
+	public Bitmap getCached(String path, int width, int height) {
+		String key = key(path, width, height);
+		if (key == null)
+			return null;
+		synchronized (mMemory) {
+			return mMemory.get(key);
+		}
+	}
+
+	/**
+	 * Get the artwork of a media file, decoded to at least the given size.
+	 *
+	 * @param priority
+	 *            the {@link RetrieverPool} priority if the file has to be
+	 *            opened
+	 * @return the artwork, null if the file has none
+	 */
+	public Future<Bitmap> get(String path, int width, int height, int priority) {
+		String key = key(path, width, height);
+		if (key == null) {
+			SettableFuture<Bitmap> result = new SettableFuture<Bitmap>();
+			result.set(null);
+			return result;
+		}
+
+		Bitmap cached;
+		synchronized (mMemory) {
+			cached = mMemory.get(key);
+		}
+		if (cached != null) {
+			SettableFuture<Bitmap> result = new SettableFuture<Bitmap>();
+			result.set(cached);
+			return result;
+		}
+
+		Work work;
+		Request request;
+		synchronized (mPending) {
+			work = mPending.get(key);
+			if (work != null) {
+				request = new Request(work);
+				work.mRequests.add(request);
+				return request;
+			}
+			work = new Work(key, path, width, height, priority);
+			request = new Request(work);
+			work.mRequests.add(request);
+			mPending.put(key, work);
+		}
+		try {
+			mDiskExecutor.execute(work.mReadDisk);
+		} catch (RejectedExecutionException e) {
+			Log.e("ArtworkCache", e);
+			work.fail(e);
+		}
+		return request;
+	}
+
+	public void clearMemory() {
+		synchronized (mMemory) {
+			mMemory.clear();
+			mMemoryBytes = 0;
+		}
+	}
+
+	private static String key(String path, int width, int height) {
+		String fileKey = ProbeCache.fileKey(path);
+		return fileKey == null ? null : fileKey + '|' + width + 'x' + height;
+	}
+
+	private void putMemory(String key, Bitmap bitmap) {
+		int size = bitmap.getRowBytes() * bitmap.getHeight();
+		if (size > mMaxMemoryBytes)
+			return;
+		synchronized (mMemory) {
+			Bitmap old = mMemory.put(key, bitmap);
+			if (old != null)
+				mMemoryBytes -= old.getRowBytes() * old.getHeight();
+			mMemoryBytes += size;
+			// Evicted bitmaps may still be displayed, they are left to the GC
+			Iterator<Map.Entry<String, Bitmap>> it = mMemory.entrySet().iterator();
+			while (mMemoryBytes > mMaxMemoryBytes && it.hasNext()) {
+				Bitmap eldest = it.next().getValue();
+				mMemoryBytes -= eldest.getRowBytes() * eldest.getHeight();
+				it.remove();
+			}
+		}
+	}
+
+	private Bitmap readDisk(String key) {
+		String name = Crypto.md5(key) + SUFFIX;
+		synchronized (mDiskFiles) {
+			if (mDiskFiles.get(name) == null)
+				return null;
+		}
+		File f = new File(mDir, name);
+		Bitmap bitmap = BitmapFactory.decodeFile(f.getPath());
+		if (bitmap != null)
+			f.setLastModified(System.currentTimeMillis());
+		return bitmap;
+	}
+
+	private void writeDisk(String key, Bitmap bitmap) {
+		String name = Crypto.md5(key) + SUFFIX;
+		File tmp = new File(mDir, name + ".tmp");
+		File f = new File(mDir, name);
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(tmp));
+			if (bitmap.hasAlpha())
+				bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+			else
+				bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(f))
+				throw new IOException("rename failed");
+		} catch (IOException e) {
+			Log.e("ArtworkCache: can't write " + f, e);
+			tmp.delete();
+			return;
+		} finally {
+			IOUtils.closeSilently(out);
+		}
+
+		synchronized (mDiskFiles) {
+			Long old = mDiskFiles.put(name, f.length());
+			mDiskBytes += f.length() - (old != null ? old : 0);
+			Iterator<Map.Entry<String, Long>> it = mDiskFiles.entrySet().iterator();
+			while (mDiskBytes > mMaxDiskBytes && it.hasNext()) {
+				Map.Entry<String, Long> eldest = it.next();
+				new File(mDir, eldest.getKey()).delete();
+				mDiskBytes -= eldest.getValue();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the picture decoded with the largest sample size keeping it at
+	 *         least width x height, null if it can't be decoded
+	 */
+	static Bitmap decodeSampled(byte[] data, int width, int height) {
+		width = Math.max(1, width);
+		height = Math.max(1, height);
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0)
+			return null;
+		int sampleSize = 1;
+		while (options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height)
+			sampleSize *= 2;
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		try {
+			return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		} catch (OutOfMemoryError e) {
+			Log.e("ArtworkCache", e);
+			return null;
+		}
+	}
+
+	/**
+	 * The result of one call to {@link ArtworkCache#get}. Cancelling it
+	 * detaches it from the shared work, which is cancelled once no request
+	 * is left.
+	 */
+	private final class Request extends SettableFuture<Bitmap> {
+		private final Work mWork;
+
+		Request(Work work) {
+			mWork = work;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled)
+				mWork.remove(this);
+			return cancelled;
+		}
+	}
+
+	/**
+	 * Reading or extracting the artwork of a key, completed by the disk or
+	 * extraction stage.
+	 */
+	private final class Work {
+		private final String mKey;
+		private final String mPath;
+		private final int mWidth;
+		private final int mHeight;
+		private final int mPriority;
+		/** Guarded by mPending. */
+		private final ArrayList<Request> mRequests = new ArrayList<Request>(2);
+		private volatile boolean mCancelled;
+		private volatile Future<Bitmap> mExtraction;
+
+		Work(String key, String path, int width, int height, int priority) {
+			mKey = key;
+			mPath = path;
+			mWidth = width;
+			mHeight = height;
+			mPriority = priority;
+		}
+
+		private void remove(Request request) {
+			synchronized (mPending) {
+				mRequests.remove(request);
+				if (!mRequests.isEmpty() || mPending.get(mKey) != this)
+					return;
+				mPending.remove(mKey);
+				mCancelled = true;
+			}
+			Future<Bitmap> extraction = mExtraction;
+			if (extraction != null)
+				extraction.cancel(false);
+		}
+
+		/**
+		 * @return the requests to complete, none left pending
+		 */
+		private Request[] detach() {
+			synchronized (mPending) {
+				if (mPending.get(mKey) == this)
+					mPending.remove(mKey);
+				Request[] requests = mRequests.toArray(new Request[mRequests.size()]);
+				mRequests.clear();
+				return requests;
+			}
+		}
+
+		private void finish(Bitmap bitmap) {
+			for (Request request : detach())
+				request.set(bitmap);
+		}
+
+		private void fail(Throwable exception) {
+			for (Request request : detach())
+				request.setException(exception);
+		}
+
+		private final Runnable mReadDisk = new Runnable() {
+			@Override
+			public void run() {
+				if (mCancelled)
+					return;
+				Bitmap bitmap = readDisk(mKey);
+				if (bitmap != null) {
+					putMemory(mKey, bitmap);
+					finish(bitmap);
+					return;
+				}
+				try {
+					mExtraction = mPool.submit(mPath, mPriority, mExtract, mExtracted);
+				} catch (IllegalStateException e) {
+					finish(null);
+					return;
+				}
+				// Cancelled while submitting, remove() did not see the extraction
+				if (mCancelled)
+					mExtraction.cancel(false);
+			}
+		};
+
+		private final RetrieverPool.Task<Bitmap> mExtract = new RetrieverPool.Task<Bitmap>() {
+			@Override
+			public Bitmap run(MediaMetadataRetriever retriever) {
+				byte[] data = retriever.getEmbeddedPicture();
+				Bitmap bitmap = data != null ? decodeSampled(data, mWidth, mHeight) : null;
+				if (bitmap != null) {
+					putMemory(mKey, bitmap);
+					writeDisk(mKey, bitmap);
+				}
+				return bitmap;
+			}
+		};
+
+		private final RetrieverPool.OnDoneListener<Bitmap> mExtracted = new RetrieverPool.OnDoneListener<Bitmap>() {
+			@Override
+			public void onDone(Future<Bitmap> future) {
+				Bitmap bitmap = null;
+				try {
+					if (!future.isCancelled())
+						bitmap = future.get();
+				} catch (Exception e) {
+					// Failed to open or decode, reported by the pool
+				}
+				finish(bitmap);
+			}
+		};
+	}
+}
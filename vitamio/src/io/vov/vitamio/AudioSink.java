@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+/**
+ * Receives the decoded audio of a {@link MediaPlayer} as 16-bit PCM. All
+ * methods are called from the native audio thread. The default sink is
+ * {@link AudioTrackSink}; see {@link MediaPlayer#setAudioSink(AudioSink)}.
+ */
+public interface AudioSink {
+	/**
+	 * Prepare for a new stream, releasing any previous one.
+	 * 
+	 * @param sampleRateInHz
+	 *            the sample rate of the stream
+	 * @param channels
+	 *            the number of channels, 1 or 2
+	 * @return the buffer size in bytes, or 0 if the stream can't be played
+	 */
+	int open(int sampleRateInHz, int channels);
+
+	/**
+	 * Queue interleaved 16-bit PCM. Returns once all of the data has been
+	 * accepted; the array may be reused by the caller afterwards.
+	 */
+	void write(byte[] audioData, int offsetInBytes, int sizeInBytes);
+
+	void setVolume(float leftVolume, float rightVolume);
+
+	void play();
+
+	void pause();
+
+	void release();
+}
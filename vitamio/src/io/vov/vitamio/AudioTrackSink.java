@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+import io.vov.vitamio.utils.Log;
+
+/**
+ * The default {@link AudioSink}, playing through a streaming
+ * {@link AudioTrack} on {@link AudioManager#STREAM_MUSIC}.
+ * <p>
+ * The sink counts underruns, i.e. writes that find the track already
+ * drained while playing, and measures how long writes block and how full the
+ * track is. With {@link #setMaxBufferMultiple(int)} above 1, every underrun
+ * doubles the track buffer, up to that multiple of
+ * {@link AudioTrack#getMinBufferSize(int, int, int)}. The track is recreated
+ * while it is empty anyway, and the larger size is kept for later streams.
+ * </p>
+ */
+public class AudioTrackSink implements AudioSink {
+	private static final int BYTES_PER_SAMPLE = 2;
+
+	private AudioTrack mAudioTrack;
+	private int mAudioTrackBufferSize;
+	private int mSampleRate;
+	private int mChannelConfig;
+	private int mFrameSize;
+	private int mMinBufferSize;
+	private int mBufferMultiple = 1;
+	private volatile int mMaxBufferMultiple = 1;
+	private long mFramesWritten;
+	private float mLeftVolume = 1.0f;
+	private float mRightVolume = 1.0f;
+
+	private volatile int mUnderrunCount;
+	private volatile long mWriteCount;
+	private volatile long mWriteNanos;
+	private volatile long mMaxWriteNanos;
+	private volatile int mFillPercent;
+
+	/**
+	 * Allow the track buffer to grow after underruns, trading latency for
+	 * glitch-free playback. Defaults to 1, i.e. the minimum buffer size.
+	 * 
+	 * @param multiple
+	 *            the largest buffer size as a multiple of the minimum
+	 */
+	public void setMaxBufferMultiple(int multiple) {
+		mMaxBufferMultiple = Math.max(1, multiple);
+	}
+
+	/**
+	 * @return the current buffer size in bytes, 0 if no stream is open
+	 */
+	public int getBufferSize() {
+		return mAudioTrackBufferSize;
+	}
+
+	/**
+	 * @return the number of underruns detected since the stream was opened
+	 */
+	public int getUnderrunCount() {
+		return mUnderrunCount;
+	}
+
+	/**
+	 * @return the number of writes since the stream was opened
+	 */
+	public long getWriteCount() {
+		return mWriteCount;
+	}
+
+	/**
+	 * @return the average time a write blocked, in microseconds
+	 */
+	public long getAverageWriteLatencyUs() {
+		long count = mWriteCount;
+		return count == 0 ? 0 : mWriteNanos / count / 1000;
+	}
+
+	/**
+	 * @return the longest time a write blocked, in microseconds
+	 */
+	public long getMaxWriteLatencyUs() {
+		return mMaxWriteNanos / 1000;
+	}
+
+	/**
+	 * @return how full the track buffer was before the last write, 0-100
+	 */
+	public int getFillPercent() {
+		return mFillPercent;
+	}
+
+	@Override
+	public int open(int sampleRateInHz, int channels) {
+		release();
+		mSampleRate = sampleRateInHz;
+		mChannelConfig = channels >= 2 ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO;
+		mFrameSize = (channels >= 2 ? 2 : 1) * BYTES_PER_SAMPLE;
+		mUnderrunCount = 0;
+		mWriteCount = 0;
+		mWriteNanos = 0;
+		mMaxWriteNanos = 0;
+		mFillPercent = 0;
+		try {
+			mMinBufferSize = AudioTrack.getMinBufferSize(sampleRateInHz, mChannelConfig,
+					AudioFormat.ENCODING_PCM_16BIT);
+			int multiple = Math.min(mBufferMultiple, mMaxBufferMultiple);
+			useTrack(createTrack(multiple), multiple);
+		} catch (Exception e) {
+			mAudioTrackBufferSize = 0;
+			Log.e("audioTrackInit", e);
+		}
+		return mAudioTrackBufferSize;
+	}
+
+	/**
+	 * @return an initialized track with the last volume set
+	 * @throws IllegalStateException
+	 *             if the track could not be initialized
+	 */
+	private AudioTrack createTrack(int multiple) {
+		AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, mSampleRate, mChannelConfig,
+				AudioFormat.ENCODING_PCM_16BIT, mMinBufferSize * multiple, AudioTrack.MODE_STREAM);
+		if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+			track.release();
+			throw new IllegalStateException("AudioTrack not initialized");
+		}
+		track.setStereoVolume(mLeftVolume, mRightVolume);
+		return track;
+	}
+
+	private void useTrack(AudioTrack track, int multiple) {
+		mAudioTrack = track;
+		mBufferMultiple = multiple;
+		mAudioTrackBufferSize = mMinBufferSize * multiple;
+		mFramesWritten = 0;
+	}
+
+	@Override
+	public void write(byte[] audioData, int offsetInBytes, int sizeInBytes) {
+		if (mAudioTrack == null || mAudioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING)
+			return;
+
+		if (mFramesWritten > 0) {
+			long played = mAudioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+			long buffered = mFramesWritten - played;
+			if (buffered <= 0) {
+				mUnderrunCount++;
+				mFillPercent = 0;
+				growBuffer();
+			} else {
+				mFillPercent = (int) Math.min(100, buffered * mFrameSize * 100 / mAudioTrackBufferSize);
+			}
+		}
+
+		long start = System.nanoTime();
+		// A blocking write normally takes everything at once, loop only on
+		// short writes.
+		while (sizeInBytes > 0) {
+			int written = mAudioTrack.write(audioData, offsetInBytes, sizeInBytes);
+			if (written <= 0)
+				break;
+			sizeInBytes -= written;
+			offsetInBytes += written;
+			mFramesWritten += written / mFrameSize;
+		}
+		long elapsed = System.nanoTime() - start;
+		mWriteCount++;
+		mWriteNanos += elapsed;
+		if (elapsed > mMaxWriteNanos)
+			mMaxWriteNanos = elapsed;
+	}
+
+	private void growBuffer() {
+		int multiple = Math.min(mBufferMultiple * 2, mMaxBufferMultiple);
+		if (multiple <= mBufferMultiple)
+			return;
+		AudioTrack track = null;
+		try {
+			track = createTrack(multiple);
+			track.play();
+		} catch (Exception e) {
+			// Keep playing on the old track
+			Log.e("audioTrack grow", e);
+			if (track != null)
+				track.release();
+			return;
+		}
+		AudioTrack old = mAudioTrack;
+		useTrack(track, multiple);
+		Log.i("audioTrack buffer grown to %d bytes after underrun", mAudioTrackBufferSize);
+		old.stop();
+		old.release();
+	}
+
+	@Override
+	public void setVolume(float leftVolume, float rightVolume) {
+		mLeftVolume = leftVolume;
+		mRightVolume = rightVolume;
+		if (mAudioTrack != null)
+			mAudioTrack.setStereoVolume(leftVolume, rightVolume);
+	}
+
+	@Override
+	public void play() {
+		if (mAudioTrack != null && mAudioTrack.getState() == AudioTrack.STATE_INITIALIZED
+				&& mAudioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING)
+			mAudioTrack.play();
+	}
+
+	@Override
+	public void pause() {
+		if (mAudioTrack != null && mAudioTrack.getState() == AudioTrack.STATE_INITIALIZED)
+			mAudioTrack.pause();
+	}
+
+	@Override
+	public void release() {
+		if (mAudioTrack != null) {
+			if (mAudioTrack.getState() == AudioTrack.STATE_INITIALIZED)
+				mAudioTrack.stop();
+			mAudioTrack.release();
+		}
+		mAudioTrack = null;
+		mAudioTrackBufferSize = 0;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.graphics.Bitmap;
+
+/**
+ * A small pool of mutable bitmaps of one config. Bitmaps are handed out by
+ * {@link #obtain(int, int)} and come back with {@link #release(Bitmap)};
+ * only bitmaps of the requested size are reused.
+ */
+final class BitmapPool {
+	private final Bitmap.Config mConfig;
+	private final Bitmap[] mFree;
+	private int mFreeCount;
+
+	/**
+	 * @param maxFree
+	 *            the number of released bitmaps kept for reuse, the others
+	 *            are recycled
+	 */
+	BitmapPool(Bitmap.Config config, int maxFree) {
+		mConfig = config;
+		mFree = new Bitmap[maxFree];
+	}
+
+	synchronized Bitmap obtain(int width, int height) {
+		for (int i = mFreeCount - 1; i >= 0; i--) {
+			Bitmap b = mFree[i];
+			if (b.getWidth() == width && b.getHeight() == height) {
+				mFree[i] = mFree[--mFreeCount];
+				mFree[mFreeCount] = null;
+				return b;
+			}
+		}
+		try {
+			return Bitmap.createBitmap(width, height, mConfig);
+		} catch (OutOfMemoryError e) {
+			return null;
+		}
+	}
+
+	synchronized void release(Bitmap b) {
+		if (b == null || b.isRecycled())
+			return;
+		for (int i = 0; i < mFreeCount; i++) {
+			if (mFree[i] == b)
+				return;
+		}
+		if (mFreeCount < mFree.length) {
+			mFree[mFreeCount++] = b;
+			return;
+		}
+		// Full: drop a bitmap of a stale size first, the new size is likely
+		// to be requested again
+		for (int i = 0; i < mFreeCount; i++) {
+			Bitmap old = mFree[i];
+			if (old.getWidth() != b.getWidth() || old.getHeight() != b.getHeight()) {
+				old.recycle();
+				mFree[i] = b;
+				return;
+			}
+		}
+		b.recycle();
+	}
+
+	synchronized void clear() {
+		for (int i = 0; i < mFreeCount; i++) {
+			mFree[i].recycle();
+			mFree[i] = null;
+		}
+		mFreeCount = 0;
+	}
+}
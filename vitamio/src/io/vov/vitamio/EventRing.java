@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Preallocated ring of native player events. Records are stored in parallel
+ * primitive arrays, so posting and draining an event allocates nothing.
+ * <p>
+ * Native callbacks may come from more than one native thread, so producers
+ * are serialized on a private lock; the single consumer (the thread that
+ * dispatches listeners) reads without locking. When the ring is full, events
+ * spill to an unbounded queue until the consumer catches up, keeping the
+ * original order.
+ * </p>
+ * <p>
+ * With coalescing enabled, a drain pass first walks the pending records
+ * backwards and skips every record whose coalescing key is repeated by a
+ * newer record, so only the latest value of a progress-style event is
+ * delivered.
+ * </p>
+ */
+final class EventRing {
+	interface Callback {
+		void onEvent(int what, int arg1, int arg2, long payload, Object obj);
+
+		/**
+		 * @return a key in [0, 31] shared by events that supersede each
+		 *         other, or -1 if the event must always be delivered
+		 */
+		int coalesceKey(int what, int arg1);
+	}
+
+	private static final class Spilled {
+		final int what;
+		final int arg1;
+		final int arg2;
+		final long payload;
+		final Object obj;
+
+		Spilled(int what, int arg1, int arg2, long payload, Object obj) {
+			this.what = what;
+			this.arg1 = arg1;
+			this.arg2 = arg2;
+			this.payload = payload;
+			this.obj = obj;
+		}
+	}
+
+	private final int mMask;
+	private final int[] mWhat;
+	private final int[] mArg1;
+	private final int[] mArg2;
+	private final long[] mPayload;
+	private final Object[] mObj;
+	private final boolean[] mSkip;
+	private final Object mProducerLock = new Object();
+	private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+	private final ArrayDeque<Spilled> mSpill = new ArrayDeque<Spilled>();
+	private boolean mSpilling;
+	/** Next slot to read, written only by the consumer. */
+	private volatile int mHead;
+	/** Next slot to write, written only by producers. */
+	private volatile int mTail;
+	private volatile boolean mCoalescing;
+	private volatile long mDelivered;
+	private volatile long mCoalesced;
+
+	/**
+	 * @param capacity
+	 *            the number of events held before spilling, rounded up to a
+	 *            power of two
+	 */
+	EventRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mMask = size - 1;
+		mWhat = new int[size];
+		mArg1 = new int[size];
+		mArg2 = new int[size];
+		mPayload = new long[size];
+		mObj = new Object[size];
+		mSkip = new boolean[size];
+	}
+
+	void setCoalescing(boolean coalescing) {
+		mCoalescing = coalescing;
+	}
+
+	boolean isCoalescing() {
+		return mCoalescing;
+	}
+
+	/**
+	 * @return the number of events handed to the callback so far
+	 */
+	long getDeliveredCount() {
+		return mDelivered;
+	}
+
+	/**
+	 * @return the number of events dropped because a newer event of the same
+	 *         kind was pending
+	 */
+	long getCoalescedCount() {
+		return mCoalesced;
+	}
+
+	/**
+	 * Append an event. May be called from any thread.
+	 *
+	 * @return true if the caller must schedule a {@link #drain(Callback)}
+	 */
+	boolean post(int what, int arg1, int arg2, long payload, Object obj) {
+		synchronized (mProducerLock) {
+			int tail = mTail;
+			if (mSpilling || tail - mHead > mMask) {
+				mSpilling = true;
+				mSpill.add(new Spilled(what, arg1, arg2, payload, obj));
+			} else {
+				int i = tail & mMask;
+				mWhat[i] = what;
+				mArg1[i] = arg1;
+				mArg2[i] = arg2;
+				mPayload[i] = payload;
+				mObj[i] = obj;
+				mTail = tail + 1;
+			}
+		}
+		return !mDrainScheduled.getAndSet(true);
+	}
+
+	/**
+	 * Deliver every pending event to the callback in one pass. Must only be
+	 * called from the consumer, which may {@link #clear()} the ring from
+	 * inside the callback.
+	 */
+	void drain(Callback callback) {
+		mDrainScheduled.set(false);
+		for (;;) {
+			int head;
+			int tail;
+			while ((head = mHead) != (tail = mTail)) {
+				boolean coalescing = mCoalescing;
+				if (coalescing)
+					markSuperseded(head, tail, callback);
+				while (tail - (head = mHead) > 0) {
+					int i = head & mMask;
+					int what = mWhat[i];
+					int arg1 = mArg1[i];
+					int arg2 = mArg2[i];
+					long payload = mPayload[i];
+					Object obj = mObj[i];
+					boolean skip = coalescing && mSkip[i];
+					mObj[i] = null;
+					mHead = head + 1;
+					if (skip) {
+						mCoalesced++;
+					} else {
+						mDelivered++;
+						callback.onEvent(what, arg1, arg2, payload, obj);
+					}
+				}
+			}
+
+			Spilled s;
+			synchronized (mProducerLock) {
+				s = mSpill.poll();
+				if (s == null) {
+					mSpilling = false;
+					return;
+				}
+			}
+			mDelivered++;
+			callback.onEvent(s.what, s.arg1, s.arg2, s.payload, s.obj);
+		}
+	}
+
+	private void markSuperseded(int head, int tail, Callback callback) {
+		int seen = 0;
+		for (int k = tail - head - 1; k >= 0; k--) {
+			int i = (head + k) & mMask;
+			int key = callback.coalesceKey(mWhat[i], mArg1[i]);
+			if (key < 0) {
+				mSkip[i] = false;
+			} else {
+				int bit = 1 << key;
+				mSkip[i] = (seen & bit) != 0;
+				seen |= bit;
+			}
+		}
+	}
+
+	/**
+	 * Discard every pending event. Must only be called from the consumer,
+	 * after any scheduled drain has been cancelled.
+	 */
+	void clear() {
+		synchronized (mProducerLock) {
+			int head = mHead;
+			int tail = mTail;
+			while (head != tail) {
+				mObj[head & mMask] = null;
+				head++;
+			}
+			mHead = tail;
+			mSpill.clear();
+			mSpilling = false;
+			mDrainScheduled.set(false);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import io.vov.vitamio.MediaPlayer.OnFrameCapturedListener;
+
+/**
+ * Draws captured frames into caller-supplied bitmaps, and runs asynchronous
+ * capture requests one at a time on a worker thread. Pending requests are
+ * kept in a fixed ring, so capturing allocates nothing once the worker runs.
+ */
+final class FrameCapture implements Runnable {
+	private static final int QUEUE_SIZE = 4;
+
+	private final MediaPlayer mPlayer;
+	private final Canvas mCanvas = new Canvas();
+	private final Rect mDstRect = new Rect();
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	private final Bitmap[] mQueueBitmaps = new Bitmap[QUEUE_SIZE];
+	private final OnFrameCapturedListener[] mQueueListeners = new OnFrameCapturedListener[QUEUE_SIZE];
+	private int mQueueHead;
+	private int mQueueCount;
+	private Thread mThread;
+	private boolean mQuit;
+
+	FrameCapture(MediaPlayer mp) {
+		mPlayer = mp;
+	}
+
+	/**
+	 * Draw the frame into the destination, scaling it if the size differs.
+	 */
+	synchronized void draw(Bitmap frame, Bitmap dst) {
+		mCanvas.setBitmap(dst);
+		if (frame.getWidth() == dst.getWidth() && frame.getHeight() == dst.getHeight()) {
+			mCanvas.drawBitmap(frame, 0, 0, null);
+		} else {
+			mDstRect.set(0, 0, dst.getWidth(), dst.getHeight());
+			mCanvas.drawBitmap(frame, null, mDstRect, mPaint);
+		}
+	}
+
+	/**
+	 * @return false if the queue is full or the capture has been released
+	 */
+	synchronized boolean enqueue(Bitmap dst, OnFrameCapturedListener listener) {
+		if (mQuit || mQueueCount == QUEUE_SIZE)
+			return false;
+		int tail = (mQueueHead + mQueueCount) % QUEUE_SIZE;
+		mQueueBitmaps[tail] = dst;
+		mQueueListeners[tail] = listener;
+		mQueueCount++;
+		if (mThread == null) {
+			mThread = new Thread(this, "VitamioFrameCapture");
+			mThread.start();
+		} else {
+			notify();
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Bitmap dst;
+			OnFrameCapturedListener listener;
+			synchronized (this) {
+				while (mQueueCount == 0 && !mQuit) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						mQuit = true;
+					}
+				}
+				if (mQuit)
+					return;
+				dst = mQueueBitmaps[mQueueHead];
+				listener = mQueueListeners[mQueueHead];
+				mQueueBitmaps[mQueueHead] = null;
+				mQueueListeners[mQueueHead] = null;
+				mQueueHead = (mQueueHead + 1) % QUEUE_SIZE;
+				mQueueCount--;
+			}
+			boolean captured = mPlayer.getCurrentFrame(dst);
+			listener.onFrameCaptured(mPlayer, dst, captured);
+		}
+	}
+
+	/**
+	 * Stop the worker. Requests still queued are dropped without calling
+	 * their listeners.
+	 */
+	synchronized void release() {
+		mQuit = true;
+		for (int i = 0; i < QUEUE_SIZE; i++) {
+			mQueueBitmaps[i] = null;
+			mQueueListeners[i] = null;
+		}
+		mQueueCount = 0;
+		notify();
+	}
+}
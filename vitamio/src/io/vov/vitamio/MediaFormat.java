@@ -17,6 +17,7 @@
 package io.vov.vitamio;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -174,6 +175,26 @@ import java.util.Map;
  * </table>
  */
 public final class MediaFormat {
+	private static final byte TYPE_NONE = 0;
+	private static final byte TYPE_INTEGER = 1;
+	private static final byte TYPE_LONG = 2;
+	private static final byte TYPE_FLOAT = 3;
+	private static final byte TYPE_STRING = 4;
+	private static final byte TYPE_BYTE_BUFFER = 5;
+	/** Any other value given to a well-known key through the map. */
+	private static final byte TYPE_OBJECT = 6;
+
+	private static final int TYPE_BITS = 3;
+	private static final int INITIAL_ENTRIES = 4;
+
+	// Values of the well-known keys live in entries, in the order they were
+	// first set, numbers unboxed; only other keys go to mMap. An entry is the
+	// key id shifted by TYPE_BITS, or'ed with the type of the value. The
+	// arrays grow with the keys set, a format rarely has more than a few.
+	private int[] mEntries;
+	private long[] mPrimitives;
+	private Object[] mObjects;
+	private int mCount;
 	private Map<String, Object> mMap;
 
 	/**
@@ -358,33 +379,88 @@ public final class MediaFormat {
 	 */
 	public static final String KEY_IS_FORCED_SUBTITLE = "is-forced-subtitle";
 
+	private static final String[] KEYS = { KEY_MIME, KEY_LANGUAGE, KEY_TITLE, KEY_PATH, KEY_SAMPLE_RATE,
+			KEY_CHANNEL_COUNT, KEY_WIDTH, KEY_HEIGHT, KEY_MAX_WIDTH, KEY_MAX_HEIGHT, KEY_MAX_INPUT_SIZE, KEY_BIT_RATE,
+			KEY_COLOR_FORMAT, KEY_FRAME_RATE, KEY_I_FRAME_INTERVAL, KEY_STRIDE, KEY_SLICE_HEIGHT,
+			KEY_REPEAT_PREVIOUS_FRAME_AFTER, KEY_PUSH_BLANK_BUFFERS_ON_STOP, KEY_DURATION, KEY_IS_ADTS,
+			KEY_CHANNEL_MASK, KEY_AAC_PROFILE, KEY_FLAC_COMPRESSION_LEVEL, KEY_IS_AUTOSELECT, KEY_IS_DEFAULT,
+			KEY_IS_FORCED_SUBTITLE };
+
+	// Open addressing table from the key hash to the key id. String caches its
+	// hash, so resolving a constant key costs an array read and a reference
+	// comparison.
+	private static final int KEY_TABLE_SIZE = 64;
+	private static final String[] KEY_TABLE = new String[KEY_TABLE_SIZE];
+	private static final byte[] KEY_TABLE_IDS = new byte[KEY_TABLE_SIZE];
+
+	static {
+		for (int id = 0; id < KEYS.length; id++) {
+			int slot = keySlot(KEYS[id]);
+			while (KEY_TABLE[slot] != null)
+				slot = (slot + 1) & (KEY_TABLE_SIZE - 1);
+			KEY_TABLE[slot] = KEYS[id];
+			KEY_TABLE_IDS[slot] = (byte) id;
+		}
+	}
+
+	private static int keySlot(String name) {
+		int h = name.hashCode();
+		return (h ^ (h >>> 16)) & (KEY_TABLE_SIZE - 1);
+	}
+
+	/**
+	 * @return the id of a well-known key, -1 for other keys
+	 */
+	private static int keyId(String name) {
+		for (int slot = keySlot(name);; slot = (slot + 1) & (KEY_TABLE_SIZE - 1)) {
+			String key = KEY_TABLE[slot];
+			if (key == null)
+				return -1;
+			if (key == name || key.equals(name))
+				return KEY_TABLE_IDS[slot];
+		}
+	}
+
 	/* package private */MediaFormat(Map<String, Object> map) {
-		mMap = map;
+		for (Map.Entry<String, Object> entry : map.entrySet())
+			put(entry.getKey(), entry.getValue());
 	}
 
 	/**
 	 * Creates an empty MediaFormat
 	 */
 	public MediaFormat() {
-		mMap = new HashMap<String, Object>();
 	}
 
+	/**
+	 * @return a copy of all keys and values, numbers boxed
+	 */
 	/* package private */Map<String, Object> getMap() {
-		return mMap;
+		Map<String, Object> map = mMap != null ? new HashMap<String, Object>(mMap) : new HashMap<String, Object>();
+		for (int index = 0; index < mCount; index++)
+			map.put(KEYS[mEntries[index] >>> TYPE_BITS], get(index));
+		return map;
 	}
 
 	/**
 	 * Returns true iff a key of the given name exists in the format.
 	 */
 	public final boolean containsKey(String name) {
-		return mMap.containsKey(name);
+		int id = keyId(name);
+		if (id < 0)
+			return mMap != null && mMap.containsKey(name);
+		return indexOf(id) >= 0;
 	}
 
 	/**
 	 * Returns the value of an integer key.
 	 */
 	public final int getInteger(String name) {
-		return ((Integer) mMap.get(name)).intValue();
+		int id = keyId(name);
+		int index = indexOf(id);
+		if (type(index) != TYPE_INTEGER)
+			return ((Integer) getBoxed(id, index, name)).intValue();
+		return (int) mPrimitives[index];
 	}
 
 	/**
@@ -394,75 +470,220 @@ public final class MediaFormat {
 	 * @hide
 	 */
 	public final int getInteger(String name, int defaultValue) {
-		try {
-			return getInteger(name);
-		} catch (NullPointerException e) { /* no such field */
-		} catch (ClassCastException e) { /* field of different type */
+		int id = keyId(name);
+		if (id >= 0) {
+			int index = indexOf(id);
+			return type(index) == TYPE_INTEGER ? (int) mPrimitives[index] : defaultValue;
 		}
-		return defaultValue;
+		Object value = mMap != null ? mMap.get(name) : null;
+		return value instanceof Integer ? ((Integer) value).intValue() : defaultValue;
 	}
 
 	/**
 	 * Returns the value of a long key.
 	 */
 	public final long getLong(String name) {
-		return ((Long) mMap.get(name)).longValue();
+		int id = keyId(name);
+		int index = indexOf(id);
+		if (type(index) != TYPE_LONG)
+			return ((Long) getBoxed(id, index, name)).longValue();
+		return mPrimitives[index];
 	}
 
 	/**
 	 * Returns the value of a float key.
 	 */
 	public final float getFloat(String name) {
-		return ((Float) mMap.get(name)).floatValue();
+		int id = keyId(name);
+		int index = indexOf(id);
+		if (type(index) != TYPE_FLOAT)
+			return ((Float) getBoxed(id, index, name)).floatValue();
+		return Float.intBitsToFloat((int) mPrimitives[index]);
 	}
 
 	/**
 	 * Returns the value of a string key.
 	 */
 	public final String getString(String name) {
-		return (String) mMap.get(name);
+		int id = keyId(name);
+		int index = indexOf(id);
+		if (type(index) != TYPE_STRING)
+			return (String) getBoxed(id, index, name);
+		return (String) mObjects[index];
 	}
 
 	/**
 	 * Returns the value of a ByteBuffer key.
 	 */
 	public final ByteBuffer getByteBuffer(String name) {
-		return (ByteBuffer) mMap.get(name);
+		int id = keyId(name);
+		int index = indexOf(id);
+		if (type(index) != TYPE_BYTE_BUFFER)
+			return (ByteBuffer) getBoxed(id, index, name);
+		return (ByteBuffer) mObjects[index];
 	}
 
 	/**
 	 * Sets the value of an integer key.
 	 */
 	public final void setInteger(String name, int value) {
-		mMap.put(name, Integer.valueOf(value));
+		int id = keyId(name);
+		if (id < 0)
+			putCustom(name, Integer.valueOf(value));
+		else
+			setPrimitive(id, TYPE_INTEGER, value);
 	}
 
 	/**
 	 * Sets the value of a long key.
 	 */
 	public final void setLong(String name, long value) {
-		mMap.put(name, Long.valueOf(value));
+		int id = keyId(name);
+		if (id < 0)
+			putCustom(name, Long.valueOf(value));
+		else
+			setPrimitive(id, TYPE_LONG, value);
 	}
 
 	/**
 	 * Sets the value of a float key.
 	 */
 	public final void setFloat(String name, float value) {
-		mMap.put(name, Float.valueOf(value));
+		int id = keyId(name);
+		if (id < 0)
+			putCustom(name, Float.valueOf(value));
+		else
+			setPrimitive(id, TYPE_FLOAT, Float.floatToRawIntBits(value));
 	}
 
 	/**
 	 * Sets the value of a string key.
 	 */
 	public final void setString(String name, String value) {
-		mMap.put(name, value);
+		int id = keyId(name);
+		if (id < 0)
+			putCustom(name, value);
+		else
+			setObject(id, TYPE_STRING, value);
 	}
 
 	/**
 	 * Sets the value of a ByteBuffer key.
 	 */
 	public final void setByteBuffer(String name, ByteBuffer bytes) {
-		mMap.put(name, bytes);
+		int id = keyId(name);
+		if (id < 0)
+			putCustom(name, bytes);
+		else
+			setObject(id, TYPE_BYTE_BUFFER, bytes);
+	}
+
+	/**
+	 * @return the entry of a well-known key, -1 if it is not set or the key is
+	 *         not well-known
+	 */
+	private int indexOf(int id) {
+		if (id >= 0) {
+			for (int index = 0; index < mCount; index++) {
+				if (mEntries[index] >>> TYPE_BITS == id)
+					return index;
+			}
+		}
+		return -1;
+	}
+
+	private int type(int index) {
+		return index >= 0 ? mEntries[index] & ((1 << TYPE_BITS) - 1) : TYPE_NONE;
+	}
+
+	/**
+	 * @return the entry of the key, added if it was not set
+	 */
+	private int entry(int id, byte type) {
+		int index = indexOf(id);
+		if (index < 0) {
+			if (mEntries == null) {
+				mEntries = new int[INITIAL_ENTRIES];
+			} else if (mCount == mEntries.length) {
+				int length = mCount * 2;
+				mEntries = Arrays.copyOf(mEntries, length);
+				if (mPrimitives != null)
+					mPrimitives = Arrays.copyOf(mPrimitives, length);
+				if (mObjects != null)
+					mObjects = Arrays.copyOf(mObjects, length);
+			}
+			index = mCount++;
+		}
+		mEntries[index] = id << TYPE_BITS | type;
+		return index;
+	}
+
+	private void setPrimitive(int id, byte type, long value) {
+		int index = entry(id, type);
+		if (mPrimitives == null)
+			mPrimitives = new long[mEntries.length];
+		mPrimitives[index] = value;
+		if (mObjects != null)
+			mObjects[index] = null;
+	}
+
+	private void setObject(int id, byte type, Object value) {
+		int index = entry(id, type);
+		if (mObjects == null)
+			mObjects = new Object[mEntries.length];
+		// A null value is still a mapping, as with the HashMap this replaces
+		mObjects[index] = value;
+	}
+
+	private void putCustom(String name, Object value) {
+		if (mMap == null)
+			mMap = new HashMap<String, Object>();
+		mMap.put(name, value);
+	}
+
+	private void put(String name, Object value) {
+		int id = keyId(name);
+		if (id < 0)
+			putCustom(name, value);
+		else if (value instanceof Integer)
+			setPrimitive(id, TYPE_INTEGER, ((Integer) value).intValue());
+		else if (value instanceof Long)
+			setPrimitive(id, TYPE_LONG, ((Long) value).longValue());
+		else if (value instanceof Float)
+			setPrimitive(id, TYPE_FLOAT, Float.floatToRawIntBits(((Float) value).floatValue()));
+		else if (value instanceof ByteBuffer)
+			setObject(id, TYPE_BYTE_BUFFER, value);
+		else if (value == null || value instanceof String)
+			setObject(id, TYPE_STRING, value);
+		else
+			setObject(id, TYPE_OBJECT, value);
+	}
+
+	/**
+	 * The value as the map used to hold it, so that type mismatches fail as
+	 * they always did.
+	 */
+	private Object getBoxed(int id, int index, String name) {
+		if (id < 0)
+			return mMap != null ? mMap.get(name) : null;
+		return get(index);
+	}
+
+	private Object get(int index) {
+		switch (type(index)) {
+		case TYPE_INTEGER:
+			return Integer.valueOf((int) mPrimitives[index]);
+		case TYPE_LONG:
+			return Long.valueOf(mPrimitives[index]);
+		case TYPE_FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) mPrimitives[index]));
+		case TYPE_STRING:
+		case TYPE_BYTE_BUFFER:
+		case TYPE_OBJECT:
+			return mObjects[index];
+		default:
+			return null;
+		}
 	}
 
 	/**
@@ -524,6 +745,6 @@ public final class MediaFormat {
 
 	@Override
 	public String toString() {
-		return mMap.toString();
+		return getMap().toString();
 	}
 }
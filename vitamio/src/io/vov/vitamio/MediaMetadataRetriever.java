@@ -28,6 +28,7 @@ import io.vov.vitamio.utils.FileUtils;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.util.HashMap;
 
 /**
  * MediaMetadataRetriever is used to get meta data from any media file
@@ -43,6 +44,10 @@ import java.io.IOException;
  */
 public class MediaMetadataRetriever {
 	private AssetFileDescriptor mFD = null;
+	private ProbeCache mProbeCache;
+	private String mProbeKey;
+	private ProbeCache.Entry mProbeEntry;
+	private boolean mProbeEntryDirty;
 
 	static {
 		String LIB_ROOT = Vitamio.getLibraryPath();
@@ -65,11 +70,17 @@ public class MediaMetadataRetriever {
 			SecurityException, IllegalStateException {
 		if (context == null || uri == null)
 			throw new IllegalArgumentException();
+		closeFD();
 		String scheme = uri.getScheme();
 		if (scheme == null || scheme.equals("file")) {
-			setDataSource(FileUtils.getPath(uri.toString()));
+			String path = FileUtils.getPath(uri.toString());
+			setProbeKey(null);
+			setDataSource(path);
+			if (mProbeCache != null)
+				setProbeKey(ProbeCache.fileKey(path));
 			return;
 		}
+		setProbeKey(null);
 
 		try {
 			ContentResolver resolver = context.getContentResolver();
@@ -86,8 +97,19 @@ public class MediaMetadataRetriever {
 		return;
 	}
 
+	/**
+	 * Set the data source as a path or URL. The native call cannot reset the
+	 * probe key, so a retriever using a {@link ProbeCache} must call
+	 * {@link #setProbeKey(String)} right after it, with null if the source is
+	 * not to be cached.
+	 */
 	public native void setDataSource(String path) throws IOException, IllegalArgumentException, IllegalStateException;
 
+	/**
+	 * Set the data source as a file descriptor. As with
+	 * {@link #setDataSource(String)}, follow it with
+	 * {@link #setProbeKey(String)} when a {@link ProbeCache} is set.
+	 */
 	public native void setDataSource(FileDescriptor fd) throws IOException, IllegalArgumentException,
 			IllegalStateException;
 
@@ -105,6 +127,68 @@ public class MediaMetadataRetriever {
 	 */
 	public native String extractMetadata(String keyCode) throws IllegalStateException;
 
+	/**
+	 * Like {@link #extractMetadata(String)}, but served from the
+	 * {@link ProbeCache} when the data source was probed before. New values
+	 * are written to the cache on {@link #release()} or when the probe key
+	 * changes.
+	 * 
+	 * @see #setProbeCache(ProbeCache)
+	 */
+	public String extractCachedMetadata(String keyCode) throws IllegalStateException {
+		if (mProbeCache == null || mProbeKey == null)
+			return extractMetadata(keyCode);
+		if (mProbeEntry == null) {
+			mProbeEntry = mProbeCache.get(mProbeKey);
+			if (mProbeEntry == null)
+				mProbeEntry = new ProbeCache.Entry();
+			if (mProbeEntry.extracted == null)
+				mProbeEntry.extracted = new HashMap<String, String>();
+		}
+		if (mProbeEntry.extracted.containsKey(keyCode))
+			return mProbeEntry.extracted.get(keyCode);
+		String value = extractMetadata(keyCode);
+		mProbeEntry.extracted.put(keyCode, value);
+		mProbeEntryDirty = true;
+		return value;
+	}
+
+	/**
+	 * @param cache
+	 *            the cache used by {@link #extractCachedMetadata(String)}, or
+	 *            null to always probe
+	 */
+	public void setProbeCache(ProbeCache cache) {
+		flushProbeEntry();
+		mProbeCache = cache;
+	}
+
+	/**
+	 * Set the key the current data source is cached under. Set automatically
+	 * by {@link #setDataSource(Context, Uri)}, which also clears it for
+	 * sources it cannot key; call it after {@link #setDataSource(String)} and
+	 * {@link #setDataSource(FileDescriptor)} with
+	 * {@link ProbeCache#fileKey(String)}, {@link ProbeCache#urlKey(String, String)}
+	 * or null, otherwise the key of the previous source stays in effect.
+	 * 
+	 * @param key
+	 *            the cache key, or null to not cache this source
+	 */
+	public void setProbeKey(String key) {
+		flushProbeEntry();
+		mProbeKey = key;
+	}
+
+	private void flushProbeEntry() {
+		if (mProbeEntryDirty && mProbeCache != null && mProbeKey != null) {
+			ProbeCache.Entry update = new ProbeCache.Entry();
+			update.extracted = mProbeEntry.extracted;
+			mProbeCache.put(mProbeKey, update);
+		}
+		mProbeEntry = null;
+		mProbeEntryDirty = false;
+	}
+
 	public native Bitmap getFrameAtTime(long timeUs) throws IllegalStateException;
 
 	/**
@@ -125,6 +209,7 @@ public class MediaMetadataRetriever {
 	private native final void native_finalize();
 
 	public void release() {
+		setProbeKey(null);
 		_release();
 		closeFD();
 	}
@@ -22,13 +22,8 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
 import android.net.Uri;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -39,6 +34,7 @@ import android.view.Surface;
 import android.view.SurfaceHolder;
 
 import io.vov.vitamio.utils.FileUtils;
+import io.vov.vitamio.utils.ListenerList;
 import io.vov.vitamio.utils.Log;
 
 import java.io.File;
@@ -50,7 +46,11 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * MediaPlayer class can be used to control playback of audio/video files and
@@ -142,47 +142,65 @@ public class MediaPlayer {
 	private static final int MEDIA_HW_ERROR = 400;
 	private static final int MEDIA_TIMED_TEXT = 1000;
 	private static final int MEDIA_CACHING_UPDATE = 2000;
-	private static final String MEDIA_CACHING_SEGMENTS = "caching_segment";
-	private static final String MEDIA_CACHING_TYPE = "caching_type";
-	private static final String MEDIA_CACHING_INFO = "caching_info";
-	private static final String MEDIA_SUBTITLE_STRING = "sub_string";
-	private static final String MEDIA_SUBTITLE_BYTES = "sub_bytes";
-	private static final String MEDIA_SUBTITLE_TYPE = "sub_type";
+	private static final int MEDIA_DRAIN_EVENTS = 3000;
 	private static final int SUBTITLE_TEXT = 0;
 	private static final int SUBTITLE_BITMAP = 1;
+	private static final int SUBTITLE_POOLED_BITMAP = 2;
+	private static final int SUBTITLE_BITMAP_POOL_SIZE = 3;
+	private static final int EVENT_RING_CAPACITY = 64;
+	private static final int COALESCE_BUFFERING = 0;
+	private static final int COALESCE_CACHING_SPEED = 1;
+	private static final int COALESCE_CACHING_SEGMENTS = 2;
+	private static final int COALESCE_DOWNLOAD_RATE = 3;
+	private static final String TRACK_SEPARATOR = "!#!";
 	private static AtomicBoolean NATIVE_OMX_LOADED = new AtomicBoolean(false);
 	private Context mContext;
 	private Surface mSurface;
 	private SurfaceHolder mSurfaceHolder;
-	private EventHandler mEventHandler;
+	private EventDispatcher mEventDispatcher;
+	private volatile EventDispatcher mTelemetryDispatcher;
+	private volatile boolean mEventCoalescing;
 	private PowerManager.WakeLock mWakeLock = null;
 	private boolean mScreenOnWhilePlaying;
 	private boolean mStayAwake;
 	private Metadata mMeta;
+	private volatile ProbeCache mProbeCache;
+	private String mProbeKey;
+	private volatile boolean mReleased;
 	private TrackInfo[] mInbandTracks;
+	private String mInbandTracksEncoding;
 	private TrackInfo mOutOfBandTracks;
+	private TrackInfo[] mTrackInfo;
+	private String mTrackInfoTimedTextPath;
 	private AssetFileDescriptor mFD = null;
-	private OnHWRenderFailedListener mOnHWRenderFailedListener;
-	private OnPreparedListener mOnPreparedListener;
-	private OnCompletionListener mOnCompletionListener;
-	private OnBufferingUpdateListener mOnBufferingUpdateListener;
-	private OnCachingUpdateListener mOnCachingUpdateListener;
-	private OnSeekCompleteListener mOnSeekCompleteListener;
-	private OnVideoSizeChangedListener mOnVideoSizeChangedListener;
-	private OnErrorListener mOnErrorListener;
-	/**
-	 * Register a callback to be invoked when an info/warning is available.
-	 * 
-	 * @param listener
-	 *            the callback that will be run
-	 */
-	private OnInfoListener mOnInfoListener;
-	private OnTimedTextListener mOnTimedTextListener;
-	private AudioTrack mAudioTrack;
-	private int mAudioTrackBufferSize;
-	private Surface mLocalSurface;
-	private Bitmap mBitmap;
-	private ByteBuffer mByteBuffer;
+	private volatile OnHWRenderFailedListener mOnHWRenderFailedListener;
+	private volatile OnPreparedListener mOnPreparedListener;
+	private volatile OnCompletionListener mOnCompletionListener;
+	private volatile OnBufferingUpdateListener mOnBufferingUpdateListener;
+	private volatile OnCachingUpdateListener mOnCachingUpdateListener;
+	private volatile OnSeekCompleteListener mOnSeekCompleteListener;
+	private volatile OnVideoSizeChangedListener mOnVideoSizeChangedListener;
+	private volatile OnErrorListener mOnErrorListener;
+	private volatile OnInfoListener mOnInfoListener;
+	private volatile OnTimedTextListener mOnTimedTextListener;
+	private final ListenerList<OnHWRenderFailedListener> mHWRenderFailedListeners = new ListenerList<OnHWRenderFailedListener>();
+	private final ListenerList<OnPreparedListener> mPreparedListeners = new ListenerList<OnPreparedListener>();
+	private final ListenerList<OnCompletionListener> mCompletionListeners = new ListenerList<OnCompletionListener>();
+	private final ListenerList<OnBufferingUpdateListener> mBufferingUpdateListeners = new ListenerList<OnBufferingUpdateListener>();
+	private final ListenerList<OnCachingUpdateListener> mCachingUpdateListeners = new ListenerList<OnCachingUpdateListener>();
+	private final ListenerList<OnSeekCompleteListener> mSeekCompleteListeners = new ListenerList<OnSeekCompleteListener>();
+	private final ListenerList<OnVideoSizeChangedListener> mVideoSizeChangedListeners = new ListenerList<OnVideoSizeChangedListener>();
+	private final ListenerList<OnErrorListener> mErrorListeners = new ListenerList<OnErrorListener>();
+	private final ListenerList<OnInfoListener> mInfoListeners = new ListenerList<OnInfoListener>();
+	private final ListenerList<OnTimedTextListener> mTimedTextListeners = new ListenerList<OnTimedTextListener>();
+	private volatile OnTimedTextBitmapListener mOnTimedTextBitmapListener;
+	private final BitmapPool mSubtitleBitmaps = new BitmapPool(Bitmap.Config.ARGB_8888, SUBTITLE_BITMAP_POOL_SIZE);
+	private final FrameCapture mFrameCapture = new FrameCapture(this);
+	private volatile AudioSink mAudioSink = new AudioTrackSink();
+	/** Swapped atomically, as release() and the native thread both free it. */
+	private final AtomicReference<SoftwareRenderer> mRenderer = new AtomicReference<SoftwareRenderer>();
+	private final AtomicLong mRenderedFrames = new AtomicLong();
+	private final AtomicLong mDroppedFrames = new AtomicLong();
 
 	/**
 	 * Default constructor. The same as Android's MediaPlayer().
@@ -209,8 +227,54 @@ public class MediaPlayer {
 	 *            true
 	 */
 	public MediaPlayer(Context ctx, boolean preferHWDecoder) {
+		this(ctx, preferHWDecoder, (Looper) null);
+	}
+
+	/**
+	 * Create a MediaPlayer whose listeners are called on the given Looper.
+	 * 
+	 * @param preferHWDecoder
+	 *            MediaPlayer will try to use hardware accelerated decoder if
+	 *            true
+	 * @param looper
+	 *            the Looper to call the listeners on, or null to use the
+	 *            current thread's Looper, falling back to the main Looper
+	 */
+	public MediaPlayer(Context ctx, boolean preferHWDecoder, Looper looper) {
 		mContext = ctx;
+		loadDecoder(preferHWDecoder);
+
+		if (looper == null && (looper = Looper.myLooper()) == null)
+			looper = Looper.getMainLooper();
+		if (looper != null)
+			mEventDispatcher = new EventDispatcher(this, looper);
+		else
+			mEventDispatcher = null;
+
+		native_init();
+	}
 
+	/**
+	 * Create a MediaPlayer whose listeners are called from the given
+	 * Executor, e.g. a background thread pool. Events are delivered one at a
+	 * time and in order even if the Executor runs tasks concurrently.
+	 * 
+	 * @param preferHWDecoder
+	 *            MediaPlayer will try to use hardware accelerated decoder if
+	 *            true
+	 * @param executor
+	 *            the Executor to call the listeners from
+	 */
+	public MediaPlayer(Context ctx, boolean preferHWDecoder, Executor executor) {
+		if (executor == null)
+			throw new IllegalArgumentException("executor");
+		mContext = ctx;
+		loadDecoder(preferHWDecoder);
+		mEventDispatcher = new EventDispatcher(this, executor);
+		native_init();
+	}
+
+	private static void loadDecoder(boolean preferHWDecoder) {
 		String LIB_ROOT = Vitamio.getLibraryPath();
 		if (preferHWDecoder) {
 			if (!NATIVE_OMX_LOADED.get()) {
@@ -232,16 +296,6 @@ public class MediaPlayer {
 			}
 			NATIVE_OMX_LOADED.set(false);
 		}
-
-		Looper looper;
-		if ((looper = Looper.myLooper()) != null)
-			mEventHandler = new EventHandler(this, looper);
-		else if ((looper = Looper.getMainLooper()) != null)
-			mEventHandler = new EventHandler(this, looper);
-		else
-			mEventHandler = null;
-
-		native_init();
 	}
 
 	static {
@@ -273,10 +327,24 @@ public class MediaPlayer {
 		if (mp == null)
 			return;
 
-		if (mp.mEventHandler != null) {
-			Message m = mp.mEventHandler.obtainMessage(what, arg1, arg2, obj);
-			mp.mEventHandler.sendMessage(m);
-		}
+		mp.postEvent(what, arg1, arg2, 0, obj);
+	}
+
+	private void postEvent(int what, int arg1, int arg2, long payload, Object obj) {
+		EventDispatcher dispatcher = mTelemetryDispatcher;
+		if (dispatcher == null || !isTelemetry(what, arg1))
+			dispatcher = mEventDispatcher;
+		if (dispatcher != null)
+			dispatcher.post(what, arg1, arg2, payload, obj);
+	}
+
+	/**
+	 * @return true for the frequent events sent to the telemetry dispatcher.
+	 *         Other infos, such as buffering start and end, drive the UI and
+	 *         stay with the other events.
+	 */
+	private static boolean isTelemetry(int what, int arg1) {
+		return what == MEDIA_CACHING_UPDATE || (what == MEDIA_INFO && arg1 == MEDIA_INFO_DOWNLOAD_RATE_CHANGED);
 	}
 
 	private static native boolean loadVAO_native(String vaoPath);
@@ -350,6 +418,7 @@ public class MediaPlayer {
 	 */
 	public void setDataSource(String path) throws IOException, IllegalArgumentException, SecurityException,
 			IllegalStateException {
+		mProbeKey = mProbeCache == null ? null : ProbeCache.fileKey(path);
 		_setDataSource(path, null, null);
 	}
 
@@ -443,6 +512,7 @@ public class MediaPlayer {
 		}
 
 		final File file = new File(path);
+		mProbeKey = mProbeCache == null ? null : ProbeCache.fileKey(path);
 		if (file.exists()) {
 			FileInputStream is = new FileInputStream(file);
 			FileDescriptor fd = is.getFD();
@@ -465,10 +535,107 @@ public class MediaPlayer {
 		_setDataSegmentsSource(uris, cacheDir);
 	}
 
+	/**
+	 * Collapse pending progress events to their latest value before they are
+	 * delivered: buffering percent, caching speed, cached segments and
+	 * {@link #MEDIA_INFO_DOWNLOAD_RATE_CHANGED}. State changes such as
+	 * prepared, completion, seek complete and errors are never dropped.
+	 * Disabled by default.
+	 * 
+	 * @param coalesce
+	 *            true to deliver only the newest of superseded events
+	 */
+	public void setEventCoalescing(boolean coalesce) {
+		mEventCoalescing = coalesce;
+		if (mEventDispatcher != null)
+			mEventDispatcher.mRing.setCoalescing(coalesce);
+		EventDispatcher telemetry = mTelemetryDispatcher;
+		if (telemetry != null)
+			telemetry.mRing.setCoalescing(coalesce);
+	}
+
+	public boolean isEventCoalescing() {
+		return mEventCoalescing;
+	}
+
+	/**
+	 * @return the number of events delivered to the listeners so far
+	 */
+	public long getDeliveredEventCount() {
+		long count = mEventDispatcher != null ? mEventDispatcher.mRing.getDeliveredCount() : 0;
+		EventDispatcher telemetry = mTelemetryDispatcher;
+		if (telemetry != null)
+			count += telemetry.mRing.getDeliveredCount();
+		return count;
+	}
+
+	/**
+	 * @return the number of events dropped by
+	 *         {@link #setEventCoalescing(boolean)} so far
+	 */
+	public long getCoalescedEventCount() {
+		long count = mEventDispatcher != null ? mEventDispatcher.mRing.getCoalescedCount() : 0;
+		EventDispatcher telemetry = mTelemetryDispatcher;
+		if (telemetry != null)
+			count += telemetry.mRing.getCoalescedCount();
+		return count;
+	}
+
+	/**
+	 * Call {@link OnCachingUpdateListener}, and {@link OnInfoListener} for
+	 * {@link #MEDIA_INFO_DOWNLOAD_RATE_CHANGED}, on the given Looper instead of
+	 * the one the other listeners are called on, e.g. to keep analytics off
+	 * the UI thread. All other infos, such as
+	 * {@link #MEDIA_INFO_BUFFERING_START} and
+	 * {@link #MEDIA_INFO_BUFFERING_END}, still reach the info listener with
+	 * the other events, so it is called on both threads. Events stay in order
+	 * within each group, but not across the two groups.
+	 * 
+	 * @param looper
+	 *            the Looper for download rate and caching events, or null to
+	 *            deliver them together with the other events again
+	 */
+	public void setTelemetryLooper(Looper looper) {
+		setTelemetryDispatcher(looper == null ? null : new EventDispatcher(this, looper));
+	}
+
+	/**
+	 * The same as {@link #setTelemetryLooper(Looper)}, but delivers download
+	 * rate and caching events from an Executor.
+	 * 
+	 * @param executor
+	 *            the Executor for download rate and caching events, or null
+	 *            to deliver them together with the other events again
+	 */
+	public void setTelemetryExecutor(Executor executor) {
+		setTelemetryDispatcher(executor == null ? null : new EventDispatcher(this, executor));
+	}
+
+	private void setTelemetryDispatcher(EventDispatcher dispatcher) {
+		if (dispatcher != null)
+			dispatcher.mRing.setCoalescing(mEventCoalescing);
+		mTelemetryDispatcher = dispatcher;
+	}
+
 	public void setOnHWRenderFailedListener(OnHWRenderFailedListener l) {
 		mOnHWRenderFailedListener = l;
 	}
 
+	/**
+	 * Register an additional callback, called after the one set with
+	 * {@link #setOnHWRenderFailedListener(OnHWRenderFailedListener)}. Safe to call from any thread.
+	 * 
+	 * @param listener
+	 *            the callback that will be run
+	 */
+	public void addOnHWRenderFailedListener(OnHWRenderFailedListener listener) {
+		mHWRenderFailedListeners.add(listener);
+	}
+
+	public void removeOnHWRenderFailedListener(OnHWRenderFailedListener listener) {
+		mHWRenderFailedListeners.remove(listener);
+	}
+
 	/**
 	 * Sets the data source (file-path or http/rtsp/mms URL) to use.
 	 * 
@@ -727,6 +894,72 @@ public class MediaPlayer {
 	 */
 	public native Bitmap getCurrentFrame();
 
+	/**
+	 * Draw the current video frame into an existing bitmap, scaled to its
+	 * size. With software decoding the last displayed frame is copied and
+	 * nothing is allocated; otherwise the frame is fetched with
+	 * {@link #getCurrentFrame()} first.
+	 * 
+	 * @param dst
+	 *            a mutable bitmap, best of the video size
+	 * @return false if no frame is available
+	 */
+	public boolean getCurrentFrame(Bitmap dst) {
+		SoftwareRenderer renderer = mRenderer.get();
+		if (renderer != null)
+			return renderer.copyShown(mFrameCapture, dst);
+		Bitmap frame = getCurrentFrame();
+		if (frame == null)
+			return false;
+		mFrameCapture.draw(frame, dst);
+		frame.recycle();
+		return true;
+	}
+
+	/**
+	 * Copy the RGB565 pixels of the current video frame into a buffer,
+	 * advancing its position. With software decoding nothing is allocated.
+	 * 
+	 * @param dst
+	 *            a buffer with at least width * height * 2 bytes remaining,
+	 *            best a direct one
+	 * @return false if no frame is available or the buffer is too small
+	 */
+	public boolean getCurrentFrame(ByteBuffer dst) {
+		SoftwareRenderer renderer = mRenderer.get();
+		if (renderer != null)
+			return renderer.copyShown(dst);
+		Bitmap frame = getCurrentFrame();
+		if (frame == null)
+			return false;
+		boolean copied = false;
+		if (frame.getConfig() == Bitmap.Config.RGB_565 && dst.remaining() >= frame.getRowBytes() * frame.getHeight()) {
+			frame.copyPixelsToBuffer(dst);
+			copied = true;
+		}
+		frame.recycle();
+		return copied;
+	}
+
+	/**
+	 * Capture the current video frame on a background thread, like
+	 * {@link #getCurrentFrame(Bitmap)}. Requests are handled in order; at most
+	 * a few may be pending, so periodic sampling can't pile up.
+	 * 
+	 * @param dst
+	 *            a mutable bitmap, not to be touched until the listener is
+	 *            called
+	 * @param listener
+	 *            called on the capture thread
+	 * @return false if too many captures are pending, the listener will not
+	 *         be called
+	 */
+	public boolean getCurrentFrameAsync(Bitmap dst, OnFrameCapturedListener listener) {
+		if (dst == null || listener == null)
+			throw new IllegalArgumentException();
+		return mFrameCapture.enqueue(dst, listener);
+	}
+
 	/**
 	 * Gets the duration of the file.
 	 * 
@@ -741,26 +974,67 @@ public class MediaPlayer {
 	 */
 	public Metadata getMetadata() {
 		if (mMeta == null) {
-			mMeta = new Metadata();
-			Map<byte[], byte[]> meta = new HashMap<byte[], byte[]>();
-
-			if (!native_getMetadata(meta)) {
-				return null;
+			Map<byte[], byte[]> meta = null;
+			ProbeCache cache = mProbeCache;
+			String key = mProbeKey;
+			ProbeCache.Entry entry = cache != null && key != null ? cache.get(key) : null;
+			if (entry != null)
+				meta = entry.metadata;
+
+			if (meta == null) {
+				meta = new HashMap<byte[], byte[]>();
+				if (!native_getMetadata(meta)) {
+					return null;
+				}
+				if (cache != null && key != null) {
+					entry = new ProbeCache.Entry();
+					entry.metadata = meta;
+					cache.put(key, entry);
+				}
 			}
 
-			if (!mMeta.parse(meta, getMetaEncoding())) {
+			Metadata metadata = new Metadata();
+			if (!metadata.parse(meta, getMetaEncoding())) {
 				return null;
 			}
+			mMeta = metadata;
 		}
 		return mMeta;
 	}
 
+	/**
+	 * Serve {@link #getMetadata()} and {@link #getTrackInfo()} from the cache
+	 * when the data source was probed before, and store the results of new
+	 * probes. Local files are recognized by path, size and modification time;
+	 * other sources need {@link #setProbeKey(String)}. Set it before
+	 * setDataSource, local files are not keyed without a cache.
+	 * 
+	 * @param cache
+	 *            the cache, or null to always probe
+	 */
+	public void setProbeCache(ProbeCache cache) {
+		mProbeCache = cache;
+	}
+
+	/**
+	 * Set the key the current data source is cached under, e.g.
+	 * {@link ProbeCache#urlKey(String, String)} for remote content. Must be
+	 * called after setDataSource, which resets it.
+	 * 
+	 * @param key
+	 *            the cache key, or null to not cache this source
+	 */
+	public void setProbeKey(String key) {
+		mProbeKey = key;
+	}
+
 	/**
 	 * Releases resources associated with this MediaPlayer object. It is
 	 * considered good practice to call this method when you're done using the
 	 * MediaPlayer.
 	 */
 	public void release() {
+		mReleased = true;
 		stayAwake(false);
 		updateSurfaceScreenOn();
 		mOnPreparedListener = null;
@@ -772,12 +1046,31 @@ public class MediaPlayer {
 		mOnVideoSizeChangedListener = null;
 		mOnCachingUpdateListener = null;
 		mOnHWRenderFailedListener = null;
+		mOnTimedTextListener = null;
+		mOnTimedTextBitmapListener = null;
+		mHWRenderFailedListeners.clear();
+		mPreparedListeners.clear();
+		mCompletionListeners.clear();
+		mBufferingUpdateListeners.clear();
+		mCachingUpdateListeners.clear();
+		mSeekCompleteListeners.clear();
+		mVideoSizeChangedListeners.clear();
+		mErrorListeners.clear();
+		mInfoListeners.clear();
+		mTimedTextListeners.clear();
 		_release();
+		surfaceRelease();
 		closeFD();
+		mSubtitleBitmaps.clear();
+		mFrameCapture.release();
 	}
 
 	private native void _release();
 
+	boolean isReleased() {
+		return mReleased;
+	}
+
 	/**
 	 * Resets the MediaPlayer to its uninitialized state. After calling this
 	 * method, you will have to initialize it again by setting the data source
@@ -786,10 +1079,25 @@ public class MediaPlayer {
 	public void reset() {
 		stayAwake(false);
 		_reset();
-		mEventHandler.removeCallbacksAndMessages(null);
+		if (mEventDispatcher != null)
+			mEventDispatcher.clear();
+		EventDispatcher telemetry = mTelemetryDispatcher;
+		if (telemetry != null)
+			telemetry.clear();
+		clearTrackInfo();
+		mMeta = null;
+		mProbeKey = null;
 		closeFD();
 	}
 
+	private void clearTrackInfo() {
+		mInbandTracks = null;
+		mInbandTracksEncoding = null;
+		mOutOfBandTracks = null;
+		mTrackInfo = null;
+		mTrackInfoTimedTextPath = null;
+	}
+
 	private native void _reset();
 
 	private void closeFD() {
@@ -839,16 +1147,27 @@ public class MediaPlayer {
 	/**
 	 * Returns an array of track information.
 	 * 
+	 * @param encoding
+	 *            the charset of the track titles, null for the default
 	 * @return Array of track info. The total number of tracks is the array
-	 *         length. Must be called again if an external timed text source has
-	 *         been added after any of the addTimedTextSource methods are
-	 *         called.
+	 *         length. The result is cached per encoding until
+	 *         {@link #reset()} or until a different external timed text
+	 *         source is in use, and must not be modified.
 	 */
 	public TrackInfo[] getTrackInfo(String encoding) {
+		if (encoding == null)
+			encoding = Charset.defaultCharset().name();
+		String timedTextPath = getTimedTextPath();
+		if (mTrackInfo != null && TextUtils.equals(encoding, mInbandTracksEncoding)
+				&& TextUtils.equals(timedTextPath, mTrackInfoTimedTextPath))
+			return mTrackInfo;
+
 		TrackInfo[] trackInfo = getInbandTrackInfo(encoding);
+		mTrackInfo = trackInfo;
+		mTrackInfoTimedTextPath = timedTextPath;
 		// add out-of-band tracks
-		String timedTextPath = getTimedTextPath();
 		if (TextUtils.isEmpty(timedTextPath)) {
+			mOutOfBandTracks = null;
 			return trackInfo;
 		}
 		TrackInfo[] allTrackInfo = new TrackInfo[trackInfo.length + 1];
@@ -866,27 +1185,50 @@ public class MediaPlayer {
 			trackInfoArray.put(timedTextSparse.keyAt(timedTextSparse.size() - 1), mediaFormat);
 		mOutOfBandTracks = new TrackInfo(TrackInfo.MEDIA_TRACK_TYPE_SUBTITLE, trackInfoArray);
 		allTrackInfo[i] = mOutOfBandTracks;
+		mTrackInfo = allTrackInfo;
 		return allTrackInfo;
 	}
 
 	private TrackInfo[] getInbandTrackInfo(String encoding) {
-		if (mInbandTracks == null) {
-			SparseArray<byte[]> trackSparse = new SparseArray<byte[]>();
-			if (!native_getTrackInfo(trackSparse)) {
+		if (mInbandTracks == null || !TextUtils.equals(encoding, mInbandTracksEncoding)) {
+			SparseArray<byte[]> trackSparse = getTrackDescriptors();
+			if (trackSparse == null) {
 				return null;
 			}
 
 			int size = trackSparse.size();
-			mInbandTracks = new TrackInfo[size];
+			TrackInfo[] tracks = new TrackInfo[size];
 			for (int i = 0; i < size; i++) {
 				SparseArray<MediaFormat> sparseArray = parseTrackInfo(trackSparse.valueAt(i), encoding);
-				TrackInfo trackInfo = new TrackInfo(trackSparse.keyAt(i), sparseArray);
-				mInbandTracks[i] = trackInfo;
+				tracks[i] = new TrackInfo(trackSparse.keyAt(i), sparseArray);
 			}
+			mInbandTracks = tracks;
+			mInbandTracksEncoding = encoding;
 		}
 		return mInbandTracks;
 	}
 
+	private SparseArray<byte[]> getTrackDescriptors() {
+		ProbeCache cache = mProbeCache;
+		String key = mProbeKey;
+		if (cache != null && key != null) {
+			ProbeCache.Entry entry = cache.get(key);
+			if (entry != null && entry.tracks != null)
+				return entry.tracks;
+		}
+
+		SparseArray<byte[]> trackSparse = new SparseArray<byte[]>();
+		if (!native_getTrackInfo(trackSparse)) {
+			return null;
+		}
+		if (cache != null && key != null) {
+			ProbeCache.Entry entry = new ProbeCache.Entry();
+			entry.tracks = trackSparse;
+			cache.put(key, entry);
+		}
+		return trackSparse;
+	}
+
 	/**
 	 * Use default chartset {@link #getTrackInfo()} method.
 	 * 
@@ -896,36 +1238,59 @@ public class MediaPlayer {
 		return getTrackInfo(Charset.defaultCharset().name());
 	}
 
-	private SparseArray<MediaFormat> parseTrackInfo(byte[] tracks, String encoding) {
-		SparseArray<MediaFormat> trackSparse = new SparseArray<MediaFormat>();
+	/**
+	 * Parse the track descriptors of one type, in the form
+	 * {@code number.language.title!#!number.language.title}. The title is
+	 * optional and may contain dots.
+	 */
+	static SparseArray<MediaFormat> parseTrackInfo(byte[] tracks, String encoding) {
 		String trackString;
-		int trackNum;
 		try {
 			trackString = new String(tracks, encoding);
 		} catch (Exception e) {
 			Log.e("getTrackMap exception");
 			trackString = new String(tracks);
 		}
-		for (String s : trackString.split("!#!")) {
-			try {
-				MediaFormat mediaFormat = null;
-				String[] formats = s.split("\\.");
-				if (formats == null)
-					continue;
-				trackNum = Integer.parseInt(formats[0]);
-				if (formats.length == 3) {
-					mediaFormat = MediaFormat.createSubtitleFormat(formats[2], formats[1]);
-				} else if (formats.length == 2) {
-					mediaFormat = MediaFormat.createSubtitleFormat("", formats[1]);
-				}
-				trackSparse.put(trackNum, mediaFormat);
-			} catch (NumberFormatException e) {
-			}
-		}
 
+		SparseArray<MediaFormat> trackSparse = new SparseArray<MediaFormat>();
+		int length = trackString.length();
+		int start = 0;
+		while (start < length) {
+			int end = trackString.indexOf(TRACK_SEPARATOR, start);
+			if (end < 0)
+				end = length;
+			parseTrack(trackString, start, end, trackSparse);
+			start = end + TRACK_SEPARATOR.length();
+		}
 		return trackSparse;
 	}
 
+	private static void parseTrack(String s, int start, int end, SparseArray<MediaFormat> trackSparse) {
+		int numberEnd = s.indexOf('.', start);
+		if (numberEnd < 0 || numberEnd > end)
+			numberEnd = end;
+		if (numberEnd == start)
+			return;
+		int trackNum = 0;
+		for (int i = start; i < numberEnd; i++) {
+			int digit = s.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || trackNum > (Integer.MAX_VALUE - digit) / 10)
+				return;
+			trackNum = trackNum * 10 + digit;
+		}
+
+		MediaFormat mediaFormat = null;
+		if (numberEnd < end) {
+			int languageEnd = s.indexOf('.', numberEnd + 1);
+			if (languageEnd < 0 || languageEnd > end)
+				languageEnd = end;
+			String language = s.substring(numberEnd + 1, languageEnd);
+			String title = languageEnd < end ? s.substring(languageEnd + 1, end) : "";
+			mediaFormat = MediaFormat.createSubtitleFormat(title, language);
+		}
+		trackSparse.put(trackNum, mediaFormat);
+	}
+
 	/**
 	 * @param mediaTrackType
 	 * @param trackInfo
@@ -945,6 +1310,7 @@ public class MediaPlayer {
 	 * 
 	 * @param path
 	 *            must be a local file
+	 * @see SubtitleEngine for large text subtitles parsed on the Java side
 	 */
 	public native void addTimedTextSource(String path);
 
@@ -1020,6 +1386,21 @@ public class MediaPlayer {
 		mOnPreparedListener = listener;
 	}
 
+	/**
+	 * Register an additional callback, called after the one set with
+	 * {@link #setOnPreparedListener(OnPreparedListener)}. Safe to call from any thread.
+	 * 
+	 * @param listener
+	 *            the callback that will be run
+	 */
+	public void addOnPreparedListener(OnPreparedListener listener) {
+		mPreparedListeners.add(listener);
+	}
+
+	public void removeOnPreparedListener(OnPreparedListener listener) {
+		mPreparedListeners.remove(listener);
+	}
+
 	/**
 	 * Register a callback to be invoked when the end of a media source has been
 	 * reached during playback.
@@ -1031,6 +1412,21 @@ public class MediaPlayer {
 		mOnCompletionListener = listener;
 	}
 
+	/**
+	 * Register an additional callback, called after the one set with
+	 * {@link #setOnCompletionListener(OnCompletionListener)}. Safe to call from any thread.
+	 * 
+	 * @param listener
+	 *            the callback that will be run
+	 */
+	public void addOnCompletionListener(OnCompletionListener listener) {
+		mCompletionListeners.add(listener);
+	}
+
+	public void removeOnCompletionListener(OnCompletionListener listener) {
+		mCompletionListeners.remove(listener);
+	}
+
 	/**
 	 * Register a callback to be invoked when the status of a network stream's
 	 * buffer has changed.
@@ -1042,6 +1438,21 @@ public class MediaPlayer {
 		mOnBufferingUpdateListener = listener;
 	}
 
+	/**
+	 * Register an additional callback, called after the one set with
+	 * {@link #setOnBufferingUpdateListener(OnBufferingUpdateListener)}. Safe to call from any thread.
+	 * 
+	 * @param listener
+	 *            the callback that will be run
+	 */
+	public void addOnBufferingUpdateListener(OnBufferingUpdateListener listener) {
+		mBufferingUpdateListeners.add(listener);
+	}
+
+	public void removeOnBufferingUpdateListener(OnBufferingUpdateListener listener) {
+		mBufferingUpdateListeners.remove(listener);
+	}
+
 	/**
 	 * Register a callback to be invoked when the segments cached on storage has
 	 * changed.
@@ -1053,15 +1464,23 @@ public class MediaPlayer {
 		mOnCachingUpdateListener = listener;
 	}
 
+	/**
+	 * Register an additional callback, called after the one set with
+	 * {@link #setOnCachingUpdateListener(OnCachingUpdateListener)}. Safe to call from any thread.
+	 * 
+	 * @param listener
+	 *            the callback that will be run
+	 */
+	public void addOnCachingUpdateListener(OnCachingUpdateListener listener) {
+		mCachingUpdateListeners.add(listener);
+	}
+
+	public void removeOnCachingUpdateListener(OnCachingUpdateListener listener) {
+		mCachingUpdateListeners.remove(listener);
+	}
+
 	private void updateCacheStatus(int type, int info, long[] segments) {
-		if (mEventHandler != null) {
-			Message m = mEventHandler.obtainMessage(MEDIA_CACHING_UPDATE);
-			Bundle b = m.getData();
-			b.putInt(MEDIA_CACHING_TYPE, type);
-			b.putInt(MEDIA_CACHING_INFO, info);
-			b.putLongArray(MEDIA_CACHING_SEGMENTS, segments);
-			mEventHandler.sendMessage(m);
-		}
+		postEvent(MEDIA_CACHING_UPDATE, type, info, 0, segments);
 	}
 
 	/**
@@ -1075,6 +1494,21 @@ public class MediaPlayer {
 		mOnSeekCompleteListener = listener;
 	}
 
+	/**
+	 * Register an additional callback, called after the one set with
+	 * {@link #setOnSeekCompleteListener(OnSeekCompleteListener)}. Safe to call from any thread.
+	 * 
+	 * @param listener
+	 *            the callback that will be run
+	 */
+	public void addOnSeekCompleteListener(OnSeekCompleteListener listener) {
+		mSeekCompleteListeners.add(listener);
+	}
+
+	public void removeOnSeekCompleteListener(OnSeekCompleteListener listener) {
+		mSeekCompleteListeners.remove(listener);
+	}
+
 	/**
 	 * Register a callback to be invoked when the video size is known or
 	 * updated.
@@ -1086,6 +1520,21 @@ public class MediaPlayer {
 		mOnVideoSizeChangedListener = listener;
 	}
 
+	/**
+	 * Register an additional callback, called after the one set with
+	 * {@link #setOnVideoSizeChangedListener(OnVideoSizeChangedListener)}. Safe to call from any thread.
+	 * 
+	 * @param listener
+	 *            the callback that will be run
+	 */
+	public void addOnVideoSizeChangedListener(OnVideoSizeChangedListener listener) {
+		mVideoSizeChangedListeners.add(listener);
+	}
+
+	public void removeOnVideoSizeChangedListener(OnVideoSizeChangedListener listener) {
+		mVideoSizeChangedListeners.remove(listener);
+	}
+
 	/**
 	 * Register a callback to be invoked when an error has happened during an
 	 * asynchronous operation.
@@ -1097,10 +1546,40 @@ public class MediaPlayer {
 		mOnErrorListener = listener;
 	}
 
+	/**
+	 * Register an additional callback, called after the one set with
+	 * {@link #setOnErrorListener(OnErrorListener)}. Safe to call from any thread.
+	 * 
+	 * @param listener
+	 *            the callback that will be run
+	 */
+	public void addOnErrorListener(OnErrorListener listener) {
+		mErrorListeners.add(listener);
+	}
+
+	public void removeOnErrorListener(OnErrorListener listener) {
+		mErrorListeners.remove(listener);
+	}
+
 	public void setOnInfoListener(OnInfoListener listener) {
 		mOnInfoListener = listener;
 	}
 
+	/**
+	 * Register an additional callback, called after the one set with
+	 * {@link #setOnInfoListener(OnInfoListener)}. Safe to call from any thread.
+	 * 
+	 * @param listener
+	 *            the callback that will be run
+	 */
+	public void addOnInfoListener(OnInfoListener listener) {
+		mInfoListeners.add(listener);
+	}
+
+	public void removeOnInfoListener(OnInfoListener listener) {
+		mInfoListeners.remove(listener);
+	}
+
 	/**
 	 * Register a callback to be invoked when a timed text need to display.
 	 * 
@@ -1111,30 +1590,86 @@ public class MediaPlayer {
 		mOnTimedTextListener = listener;
 	}
 
+	/**
+	 * Register an additional callback, called after the one set with
+	 * {@link #setOnTimedTextListener(OnTimedTextListener)}. Safe to call from any thread.
+	 * 
+	 * @param listener
+	 *            the callback that will be run
+	 */
+	public void addOnTimedTextListener(OnTimedTextListener listener) {
+		mTimedTextListeners.add(listener);
+	}
+
+	public void removeOnTimedTextListener(OnTimedTextListener listener) {
+		mTimedTextListeners.remove(listener);
+	}
+
 	private void updateSub(int subType, byte[] bytes, String encoding, int width, int height) {
-		if (mEventHandler != null) {
-			Message m = mEventHandler.obtainMessage(MEDIA_TIMED_TEXT, width, height);
-			Bundle b = m.getData();
-			if (subType == SUBTITLE_TEXT) {
-				b.putInt(MEDIA_SUBTITLE_TYPE, SUBTITLE_TEXT);
-				if (encoding == null) {
-					b.putString(MEDIA_SUBTITLE_STRING, new String(bytes));
-				} else {
-					try {
-						b.putString(MEDIA_SUBTITLE_STRING, new String(bytes, encoding.trim()));
-					} catch (UnsupportedEncodingException e) {
-						Log.e("updateSub", e);
-						b.putString(MEDIA_SUBTITLE_STRING, new String(bytes));
-					}
+		if (mEventDispatcher == null)
+			return;
+		if (subType == SUBTITLE_TEXT) {
+			String text;
+			if (encoding == null) {
+				text = new String(bytes);
+			} else {
+				try {
+					text = new String(bytes, encoding.trim());
+				} catch (UnsupportedEncodingException e) {
+					Log.e("updateSub", e);
+					text = new String(bytes);
 				}
-			} else if (subType == SUBTITLE_BITMAP) {
-				b.putInt(MEDIA_SUBTITLE_TYPE, SUBTITLE_BITMAP);
-				b.putByteArray(MEDIA_SUBTITLE_BYTES, bytes);
 			}
-			mEventHandler.sendMessage(m);
+			postEvent(MEDIA_TIMED_TEXT, width, height, SUBTITLE_TEXT, text);
+		} else if (subType == SUBTITLE_BITMAP) {
+			if (mOnTimedTextBitmapListener != null) {
+				Bitmap bitmap = fillSubtitleBitmap(bytes, width, height);
+				if (bitmap != null)
+					postEvent(MEDIA_TIMED_TEXT, width, height, SUBTITLE_POOLED_BITMAP, bitmap);
+			}
+			if (mOnTimedTextListener != null || !mTimedTextListeners.isEmpty())
+				postEvent(MEDIA_TIMED_TEXT, width, height, SUBTITLE_BITMAP, bytes);
 		}
 	}
 
+	private Bitmap fillSubtitleBitmap(byte[] pixels, int width, int height) {
+		int size = width * height * 4;
+		if (width <= 0 || height <= 0 || pixels == null || pixels.length < size)
+			return null;
+		Bitmap bitmap = mSubtitleBitmaps.obtain(width, height);
+		if (bitmap != null)
+			bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels, 0, size));
+		return bitmap;
+	}
+
+	/**
+	 * Register a callback to be invoked when an image timed text need to
+	 * display, with the pixels already in a {@link Bitmap}. The bitmaps come
+	 * from a small pool owned by this MediaPlayer and are refilled for later
+	 * subtitles, so the listener must hand each one back with
+	 * {@link #releaseTimedTextBitmap(Bitmap)} once it is no longer drawn, and
+	 * must not recycle it.
+	 * 
+	 * @param listener
+	 *            the callback that will be run
+	 */
+	public void setOnTimedTextBitmapListener(OnTimedTextBitmapListener listener) {
+		mOnTimedTextBitmapListener = listener;
+	}
+
+	/**
+	 * Return a bitmap received by
+	 * {@link OnTimedTextBitmapListener#onTimedTextBitmap(MediaPlayer, Bitmap)}
+	 * to the pool. The bitmap must not be used afterwards. May be called from
+	 * any thread.
+	 * 
+	 * @param bitmap
+	 *            the subtitle bitmap that is no longer needed
+	 */
+	public void releaseTimedTextBitmap(Bitmap bitmap) {
+		mSubtitleBitmaps.release(bitmap);
+	}
+
 	protected native void _releaseVideoSurface();
 
 	/**
@@ -1283,96 +1818,104 @@ public class MediaPlayer {
 	 */
 	public native int getTimedTextTrack();
 
+	/**
+	 * Replace the default {@link AudioTrackSink}, e.g. to post-process the
+	 * audio or to measure decoding throughput without an audio device. Must
+	 * be called before {@link #prepare()} or {@link #prepareAsync()}.
+	 * 
+	 * @param sink
+	 *            receives the decoded PCM, null restores the default
+	 */
+	public void setAudioSink(AudioSink sink) {
+		mAudioSink = sink != null ? sink : new AudioTrackSink();
+	}
+
+	/**
+	 * Get the sink receiving the decoded audio. The default
+	 * {@link AudioTrackSink} reports underruns, write latency and buffer fill,
+	 * and can grow its buffer after underruns, see
+	 * {@link AudioTrackSink#setMaxBufferMultiple(int)}.
+	 * 
+	 * @return the sink set with {@link #setAudioSink(AudioSink)}, or the
+	 *         default one
+	 */
+	public AudioSink getAudioSink() {
+		return mAudioSink;
+	}
+
 	private int audioTrackInit(int sampleRateInHz, int channels) {
-		audioTrackRelease();
-		int channelConfig = channels >= 2 ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO;
-		try {
-			mAudioTrackBufferSize = AudioTrack.getMinBufferSize(sampleRateInHz, channelConfig,
-					AudioFormat.ENCODING_PCM_16BIT);
-			mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRateInHz, channelConfig,
-					AudioFormat.ENCODING_PCM_16BIT, mAudioTrackBufferSize, AudioTrack.MODE_STREAM);
-		} catch (Exception e) {
-			mAudioTrackBufferSize = 0;
-			Log.e("audioTrackInit", e);
-		}
-		return mAudioTrackBufferSize;
+		return mAudioSink.open(sampleRateInHz, channels);
 	}
 
 	private void audioTrackSetVolume(float leftVolume, float rightVolume) {
-		if (mAudioTrack != null)
-			mAudioTrack.setStereoVolume(leftVolume, rightVolume);
+		mAudioSink.setVolume(leftVolume, rightVolume);
 	}
 
 	private void audioTrackWrite(byte[] audioData, int offsetInBytes, int sizeInBytes) {
-		if (mAudioTrack != null && mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
-			int written;
-			while (sizeInBytes > 0) {
-				written = sizeInBytes > mAudioTrackBufferSize ? mAudioTrackBufferSize : sizeInBytes;
-				mAudioTrack.write(audioData, offsetInBytes, written);
-				sizeInBytes -= written;
-				offsetInBytes += written;
-			}
-		}
+		mAudioSink.write(audioData, offsetInBytes, sizeInBytes);
 	}
 
 	private void audioTrackStart() {
-		if (mAudioTrack != null && mAudioTrack.getState() == AudioTrack.STATE_INITIALIZED
-				&& mAudioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING)
-			mAudioTrack.play();
+		mAudioSink.play();
 	}
 
 	private void audioTrackPause() {
-		if (mAudioTrack != null && mAudioTrack.getState() == AudioTrack.STATE_INITIALIZED)
-			mAudioTrack.pause();
+		mAudioSink.pause();
 	}
 
 	private void audioTrackRelease() {
-		if (mAudioTrack != null) {
-			if (mAudioTrack.getState() == AudioTrack.STATE_INITIALIZED)
-				mAudioTrack.stop();
-			mAudioTrack.release();
-		}
-		mAudioTrack = null;
+		mAudioSink.release();
 	}
 
 	private ByteBuffer surfaceInit() {
-		synchronized (this) {
-			mLocalSurface = mSurface;
-			int w = getVideoWidth_a();
-			int h = getVideoHeight_a();
-			if (mLocalSurface != null && w != 0 && h != 0) {
-				mBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
-				mByteBuffer = ByteBuffer.allocateDirect(w * h * 2);
-			} else {
-				mBitmap = null;
-				mByteBuffer = null;
-			}
-			return mByteBuffer;
-		}
+		surfaceRelease();
+		Surface surface = mSurface;
+		int w = getVideoWidth_a();
+		int h = getVideoHeight_a();
+		if (surface == null || w == 0 || h == 0)
+			return null;
+		SoftwareRenderer renderer = new SoftwareRenderer(surface, w, h);
+		mRenderer.set(renderer);
+		return renderer.getBuffer();
 	}
 
 	private void surfaceRender() {
-		synchronized (this) {
-			if (mLocalSurface == null || !mLocalSurface.isValid() || mBitmap == null || mByteBuffer == null)
-				return;
-
-			try {
-				Canvas c = mLocalSurface.lockCanvas(null);
-				mBitmap.copyPixelsFromBuffer(mByteBuffer);
-				c.drawBitmap(mBitmap, 0, 0, null);
-				mLocalSurface.unlockCanvasAndPost(c);
-			} catch (Exception e) {
-				Log.e("surfaceRender", e);
-			}
-		}
+		SoftwareRenderer renderer = mRenderer.get();
+		if (renderer != null)
+			renderer.onFrame();
 	}
 
 	private void surfaceRelease() {
-		synchronized (this) {
-			mLocalSurface = null;
-			mBitmap = null;
-			mByteBuffer = null;
-		}
+		SoftwareRenderer renderer = mRenderer.getAndSet(null);
+		if (renderer == null)
+			return;
+		renderer.release();
+		mRenderedFrames.addAndGet(renderer.getRenderedCount());
+		mDroppedFrames.addAndGet(renderer.getDroppedCount());
+	}
+
+	/**
+	 * Get the number of frames drawn by the software renderer since the
+	 * MediaPlayer was created. Frames output by the hardware decoder are not
+	 * counted.
+	 * 
+	 * @return the number of frames drawn
+	 */
+	public long getRenderedFrameCount() {
+		SoftwareRenderer renderer = mRenderer.get();
+		return mRenderedFrames.get() + (renderer != null ? renderer.getRenderedCount() : 0);
+	}
+
+	/**
+	 * Get the number of decoded frames the software renderer skipped because
+	 * a newer frame was ready before they could be drawn, or because the
+	 * Surface was not valid.
+	 * 
+	 * @return the number of frames dropped
+	 */
+	public long getDroppedFrameCount() {
+		SoftwareRenderer renderer = mRenderer.get();
+		return mDroppedFrames.get() + (renderer != null ? renderer.getDroppedCount() : 0);
 	}
 
 	public interface OnHWRenderFailedListener {
@@ -1558,6 +2101,35 @@ public class MediaPlayer {
 		public void onTimedTextUpdate(byte[] pixels, int width, int height);
 	}
 
+	public interface OnTimedTextBitmapListener {
+		/**
+		 * Called to indicate that an image timed text need to display
+		 * 
+		 * @param mp
+		 *            the MediaPlayer the subtitle belongs to
+		 * @param bitmap
+		 *            the ARGB_8888 subtitle image, to be returned with
+		 *            {@link MediaPlayer#releaseTimedTextBitmap(Bitmap)}
+		 */
+		public void onTimedTextBitmap(MediaPlayer mp, Bitmap bitmap);
+	}
+
+	public interface OnFrameCapturedListener {
+		/**
+		 * Called when a capture requested with
+		 * {@link MediaPlayer#getCurrentFrameAsync(Bitmap, OnFrameCapturedListener)}
+		 * is done.
+		 * 
+		 * @param mp
+		 *            the MediaPlayer the frame was captured from
+		 * @param bitmap
+		 *            the bitmap passed to the request
+		 * @param captured
+		 *            false if no frame was available
+		 */
+		public void onFrameCaptured(MediaPlayer mp, Bitmap bitmap, boolean captured);
+	}
+
 	/**
 	 * Class for MediaPlayer to return each audio/video/subtitle track's
 	 * metadata.
@@ -1600,97 +2172,228 @@ public class MediaPlayer {
 
 	@SuppressLint("HandlerLeak")
 	private class EventHandler extends Handler {
-		private MediaPlayer mMediaPlayer;
-		private Bundle mData;
+		private final EventDispatcher mDispatcher;
 
-		public EventHandler(MediaPlayer mp, Looper looper) {
+		public EventHandler(EventDispatcher dispatcher, Looper looper) {
 			super(looper);
-			mMediaPlayer = mp;
+			mDispatcher = dispatcher;
 		}
 
 		@Override
 		public void handleMessage(Message msg) {
-			switch (msg.what) {
+			if (msg.what == MEDIA_DRAIN_EVENTS)
+				mDispatcher.run();
+		}
+	}
+
+	/**
+	 * Drains an {@link EventRing} on a Looper or an Executor and calls the
+	 * listeners. Draining is serialized on the dispatcher itself, so an
+	 * Executor running tasks concurrently still delivers events in order.
+	 */
+	private class EventDispatcher implements EventRing.Callback, Runnable {
+		private final MediaPlayer mMediaPlayer;
+		private final EventRing mRing = new EventRing(EVENT_RING_CAPACITY);
+		private final Handler mHandler;
+		private final Executor mExecutor;
+
+		public EventDispatcher(MediaPlayer mp, Looper looper) {
+			mMediaPlayer = mp;
+			mHandler = new EventHandler(this, looper);
+			mExecutor = null;
+		}
+
+		public EventDispatcher(MediaPlayer mp, Executor executor) {
+			mMediaPlayer = mp;
+			mHandler = null;
+			mExecutor = executor;
+		}
+
+		public void post(int what, int arg1, int arg2, long payload, Object obj) {
+			if (!mRing.post(what, arg1, arg2, payload, obj))
+				return;
+			if (mHandler != null) {
+				mHandler.sendEmptyMessage(MEDIA_DRAIN_EVENTS);
+			} else {
+				try {
+					mExecutor.execute(this);
+				} catch (RejectedExecutionException e) {
+					Log.e("EventDispatcher", e);
+				}
+			}
+		}
+
+		public void clear() {
+			if (mHandler != null)
+				mHandler.removeCallbacksAndMessages(null);
+			synchronized (this) {
+				mRing.clear();
+			}
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				mRing.drain(this);
+			}
+		}
+
+		@Override
+		public int coalesceKey(int what, int arg1) {
+			switch (what) {
+			case MEDIA_BUFFERING_UPDATE:
+				return COALESCE_BUFFERING;
+			case MEDIA_CACHING_UPDATE:
+				if (arg1 == CACHE_TYPE_SPEED)
+					return COALESCE_CACHING_SPEED;
+				if (arg1 == CACHE_TYPE_UPDATE)
+					return COALESCE_CACHING_SEGMENTS;
+				return -1;
+			case MEDIA_INFO:
+				return arg1 == MEDIA_INFO_DOWNLOAD_RATE_CHANGED ? COALESCE_DOWNLOAD_RATE : -1;
+			default:
+				return -1;
+			}
+		}
+
+		@Override
+		public void onEvent(int what, int arg1, int arg2, long payload, Object obj) {
+			Object[] listeners;
+			switch (what) {
 			case MEDIA_PREPARED:
-				if (mOnPreparedListener != null)
-					mOnPreparedListener.onPrepared(mMediaPlayer);
+				OnPreparedListener prepared = mOnPreparedListener;
+				if (prepared != null)
+					prepared.onPrepared(mMediaPlayer);
+				listeners = mPreparedListeners.array();
+				for (int i = 0; i < listeners.length; i++)
+					((OnPreparedListener) listeners[i]).onPrepared(mMediaPlayer);
 				return;
 			case MEDIA_PLAYBACK_COMPLETE:
-				if (mOnCompletionListener != null)
-					mOnCompletionListener.onCompletion(mMediaPlayer);
+				notifyCompletion();
 				stayAwake(false);
 				return;
 			case MEDIA_BUFFERING_UPDATE:
-				if (mOnBufferingUpdateListener != null)
-					mOnBufferingUpdateListener.onBufferingUpdate(mMediaPlayer, msg.arg1);
+				OnBufferingUpdateListener buffering = mOnBufferingUpdateListener;
+				if (buffering != null)
+					buffering.onBufferingUpdate(mMediaPlayer, arg1);
+				listeners = mBufferingUpdateListeners.array();
+				for (int i = 0; i < listeners.length; i++)
+					((OnBufferingUpdateListener) listeners[i]).onBufferingUpdate(mMediaPlayer, arg1);
 				return;
 			case MEDIA_SEEK_COMPLETE:
 				if (isPlaying())
 					stayAwake(true);
-				if (mOnSeekCompleteListener != null)
-					mOnSeekCompleteListener.onSeekComplete(mMediaPlayer);
+				OnSeekCompleteListener seek = mOnSeekCompleteListener;
+				if (seek != null)
+					seek.onSeekComplete(mMediaPlayer);
+				listeners = mSeekCompleteListeners.array();
+				for (int i = 0; i < listeners.length; i++)
+					((OnSeekCompleteListener) listeners[i]).onSeekComplete(mMediaPlayer);
 				return;
 			case MEDIA_SET_VIDEO_SIZE:
-				if (mOnVideoSizeChangedListener != null)
-					mOnVideoSizeChangedListener.onVideoSizeChanged(mMediaPlayer, msg.arg1, msg.arg2);
+				OnVideoSizeChangedListener size = mOnVideoSizeChangedListener;
+				if (size != null)
+					size.onVideoSizeChanged(mMediaPlayer, arg1, arg2);
+				listeners = mVideoSizeChangedListeners.array();
+				for (int i = 0; i < listeners.length; i++)
+					((OnVideoSizeChangedListener) listeners[i]).onVideoSizeChanged(mMediaPlayer, arg1, arg2);
 				return;
 			case MEDIA_ERROR:
-				Log.e("Error (%d, %d)", msg.arg1, msg.arg2);
+				Log.e("Error (%d, %d)", arg1, arg2);
 				boolean error_was_handled = false;
-				if (mOnErrorListener != null)
-					error_was_handled = mOnErrorListener.onError(mMediaPlayer, msg.arg1, msg.arg2);
-				if (mOnCompletionListener != null && !error_was_handled)
-					mOnCompletionListener.onCompletion(mMediaPlayer);
+				OnErrorListener error = mOnErrorListener;
+				if (error != null)
+					error_was_handled = error.onError(mMediaPlayer, arg1, arg2);
+				listeners = mErrorListeners.array();
+				for (int i = 0; i < listeners.length; i++)
+					error_was_handled |= ((OnErrorListener) listeners[i]).onError(mMediaPlayer, arg1, arg2);
+				if (!error_was_handled)
+					notifyCompletion();
 				stayAwake(false);
 				return;
 			case MEDIA_INFO:
-				Log.i("Info (%d, %d)", msg.arg1, msg.arg2);
-				if (mOnInfoListener != null)
-					mOnInfoListener.onInfo(mMediaPlayer, msg.arg1, msg.arg2);
+				Log.i("Info (%d, %d)", arg1, arg2);
+				OnInfoListener info = mOnInfoListener;
+				if (info != null)
+					info.onInfo(mMediaPlayer, arg1, arg2);
+				listeners = mInfoListeners.array();
+				for (int i = 0; i < listeners.length; i++)
+					((OnInfoListener) listeners[i]).onInfo(mMediaPlayer, arg1, arg2);
 				return;
 			case MEDIA_CACHE:
 				return;
 			case MEDIA_TIMED_TEXT:
-				mData = msg.getData();
-				if (mData.getInt(MEDIA_SUBTITLE_TYPE) == SUBTITLE_TEXT) {
-					Log.i("Subtitle : %s", mData.getString(MEDIA_SUBTITLE_STRING));
-					if (mOnTimedTextListener != null)
-						mOnTimedTextListener.onTimedText(mData.getString(MEDIA_SUBTITLE_STRING));
-				} else if (mData.getInt(MEDIA_SUBTITLE_TYPE) == SUBTITLE_BITMAP) {
-					Log.i("Subtitle : bitmap");
-					if (mOnTimedTextListener != null)
-						mOnTimedTextListener.onTimedTextUpdate(mData.getByteArray(MEDIA_SUBTITLE_BYTES), msg.arg1,
-								msg.arg2);
+				if (payload == SUBTITLE_POOLED_BITMAP) {
+					OnTimedTextBitmapListener bitmapListener = mOnTimedTextBitmapListener;
+					if (bitmapListener != null)
+						bitmapListener.onTimedTextBitmap(mMediaPlayer, (Bitmap) obj);
+					else
+						mSubtitleBitmaps.release((Bitmap) obj);
+					return;
 				}
+				if (payload == SUBTITLE_TEXT)
+					Log.i("Subtitle : %s", obj);
+				else if (payload == SUBTITLE_BITMAP)
+					Log.i("Subtitle : bitmap");
+				OnTimedTextListener timedText = mOnTimedTextListener;
+				if (timedText != null)
+					notifyTimedText(timedText, payload, obj, arg1, arg2);
+				listeners = mTimedTextListeners.array();
+				for (int i = 0; i < listeners.length; i++)
+					notifyTimedText((OnTimedTextListener) listeners[i], payload, obj, arg1, arg2);
 				return;
 			case MEDIA_CACHING_UPDATE:
-				if (mOnCachingUpdateListener != null) {
-					int cacheType = msg.getData().getInt(MEDIA_CACHING_TYPE);
-					if (cacheType == CACHE_TYPE_NOT_AVAILABLE) {
-						mOnCachingUpdateListener.onCachingNotAvailable(mMediaPlayer,
-								msg.getData().getInt(MEDIA_CACHING_INFO));
-					} else if (cacheType == CACHE_TYPE_UPDATE) {
-						mOnCachingUpdateListener.onCachingUpdate(mMediaPlayer,
-								msg.getData().getLongArray(MEDIA_CACHING_SEGMENTS));
-					} else if (cacheType == CACHE_TYPE_SPEED) {
-						mOnCachingUpdateListener.onCachingSpeed(mMediaPlayer, msg.getData().getInt(MEDIA_CACHING_INFO));
-					} else if (cacheType == CACHE_TYPE_START) {
-						mOnCachingUpdateListener.onCachingStart(mMediaPlayer);
-					} else if (cacheType == CACHE_TYPE_COMPLETE) {
-						mOnCachingUpdateListener.onCachingComplete(mMediaPlayer);
-					}
-				}
+				OnCachingUpdateListener caching = mOnCachingUpdateListener;
+				if (caching != null)
+					notifyCaching(caching, arg1, arg2, obj);
+				listeners = mCachingUpdateListeners.array();
+				for (int i = 0; i < listeners.length; i++)
+					notifyCaching((OnCachingUpdateListener) listeners[i], arg1, arg2, obj);
 				return;
 			case MEDIA_NOP:
 				return;
 			case MEDIA_HW_ERROR:
-				if (mOnHWRenderFailedListener != null)
-					mOnHWRenderFailedListener.onFailed();
+				OnHWRenderFailedListener hwRender = mOnHWRenderFailedListener;
+				if (hwRender != null)
+					hwRender.onFailed();
+				listeners = mHWRenderFailedListeners.array();
+				for (int i = 0; i < listeners.length; i++)
+					((OnHWRenderFailedListener) listeners[i]).onFailed();
 				return;
 			default:
-				Log.e("Unknown message type " + msg.what);
+				Log.e("Unknown message type " + what);
 				return;
 			}
 		}
+
+		private void notifyCompletion() {
+			OnCompletionListener completion = mOnCompletionListener;
+			if (completion != null)
+				completion.onCompletion(mMediaPlayer);
+			Object[] listeners = mCompletionListeners.array();
+			for (int i = 0; i < listeners.length; i++)
+				((OnCompletionListener) listeners[i]).onCompletion(mMediaPlayer);
+		}
+
+		private void notifyTimedText(OnTimedTextListener listener, long subType, Object obj, int width, int height) {
+			if (subType == SUBTITLE_TEXT)
+				listener.onTimedText((String) obj);
+			else if (subType == SUBTITLE_BITMAP)
+				listener.onTimedTextUpdate((byte[]) obj, width, height);
+		}
+
+		private void notifyCaching(OnCachingUpdateListener listener, int cacheType, int info, Object segments) {
+			if (cacheType == CACHE_TYPE_NOT_AVAILABLE) {
+				listener.onCachingNotAvailable(mMediaPlayer, info);
+			} else if (cacheType == CACHE_TYPE_UPDATE) {
+				listener.onCachingUpdate(mMediaPlayer, (long[]) segments);
+			} else if (cacheType == CACHE_TYPE_SPEED) {
+				listener.onCachingSpeed(mMediaPlayer, info);
+			} else if (cacheType == CACHE_TYPE_START) {
+				listener.onCachingStart(mMediaPlayer);
+			} else if (cacheType == CACHE_TYPE_COMPLETE) {
+				listener.onCachingComplete(mMediaPlayer);
+			}
+		}
 	}
 }
@@ -18,12 +18,15 @@
 package io.vov.vitamio;
 
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
+import android.os.Process;
 import android.os.RemoteException;
 import android.text.TextUtils;
 
@@ -36,8 +39,10 @@ import io.vov.vitamio.utils.FileUtils;
 import io.vov.vitamio.utils.Log;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MediaScanner {
 	private static final String[] VIDEO_PROJECTION = new String[] { Video.Media._ID, Video.Media.DATA,
@@ -45,11 +50,38 @@ public class MediaScanner {
 	private static final int ID_VIDEO_COLUMN_INDEX = 0;
 	private static final int PATH_VIDEO_COLUMN_INDEX = 1;
 	private static final int DATE_MODIFIED_VIDEO_COLUMN_INDEX = 2;
+	private static final String MANIFEST_NAME = "vscanner.manifest";
+	/**
+	 * Directories modified this close to the scan may change again within the
+	 * same timestamp, they are listed again next time.
+	 */
+	private static final long MANIFEST_SETTLE_MS = 2000;
+	/** Files waiting for a worker, per worker. */
+	private static final int QUEUE_SIZE_PER_WORKER = 16;
+	private static final ScanRequest NO_MORE_FILES = new ScanRequest(null, 0, 0);
+	/** Row ids per delete statement of postscan. */
+	private static final int DELETE_CHUNK_SIZE = 500;
 	private Context mContext;
 	private ContentProviderClient mProvider;
 	private boolean mCaseInsensitivePaths;
-	private HashMap<String, FileCacheEntry> mFileCache;
+	private ScanIndex mIndex;
+	/** Files not in the database yet, by {@link #cacheKey(String)}. */
+	private ConcurrentHashMap<String, FileCacheEntry> mNewFiles;
 	private MyMediaScannerClient mClient = new MyMediaScannerClient();
+	private HashSet<String> mUnchangedDirs;
+	private int mDirCount;
+	private int mSkippedDirs;
+	private int mSkippedEntries;
+	private int mWorkerCount = 1;
+	private ArrayBlockingQueue<ScanRequest> mQueue;
+	private boolean mWalkInterrupted;
+	/** Set when a file could not be scanned or written, on any thread. */
+	private volatile boolean mScanFailed;
+	private int mProbedFiles;
+	private int mBatchSize = 100;
+	private long mFlushIntervalMs = 1000;
+	private WriteBatch mBatch;
+	private int mDeletedRows;
 
 	public MediaScanner(Context ctx) {
 		mContext = ctx;
@@ -68,10 +100,8 @@ public class MediaScanner {
 		String where = null;
 		String[] selectionArgs = null;
 
-		if (mFileCache == null)
-			mFileCache = new HashMap<String, FileCacheEntry>();
-		else
-			mFileCache.clear();
+		mIndex = null;
+		mNewFiles = new ConcurrentHashMap<String, FileCacheEntry>();
 
 		try {
 			if (filePath != null) {
@@ -80,6 +110,7 @@ public class MediaScanner {
 			}
 
 			c = mProvider.query(Video.Media.CONTENT_URI, VIDEO_PROJECTION, where, selectionArgs, null);
+			mIndex = new ScanIndex(mCaseInsensitivePaths, c != null ? c.getCount() : 0);
 			if (c != null) {
 				try {
 					while (c.moveToNext()) {
@@ -92,9 +123,9 @@ public class MediaScanner {
 								mProvider.delete(Video.Media.CONTENT_URI, where, selectionArgs);
 								return;
 							}
-							path = FileUtils.getCanonical(tempFile);
-							String key = mCaseInsensitivePaths ? path.toLowerCase() : path;
-							mFileCache.put(key, new FileCacheEntry(Video.Media.CONTENT_URI, rowId, path, lastModified));
+							// Paths are only canonicalized when a scanned file
+							// misses, see beginFile
+							mIndex.add(path, rowId, lastModified);
 						}
 					}
 				} finally {
@@ -106,32 +137,53 @@ public class MediaScanner {
 			if (c != null) {
 				c.close();
 			}
+			if (mIndex == null)
+				mIndex = new ScanIndex(mCaseInsensitivePaths, 0);
+			mIndex.seal();
 		}
 	}
 
 	;
 
 	private void postscan(String[] directories) throws RemoteException {
-		Iterator<FileCacheEntry> iterator = mFileCache.values().iterator();
+		ScanIndex index = mIndex;
+		StringBuilder ids = new StringBuilder();
+		int idCount = 0;
+		mDeletedRows = 0;
 
-		while (iterator.hasNext()) {
-			FileCacheEntry entry = iterator.next();
-			String path = entry.mPath;
+		for (int i = 0; i < index.size(); i++) {
+			String path = index.path(i);
 
-			if (!entry.mSeenInFileSystem) {
+			if (!index.isSeen(i)) {
 				if (inScanDirectory(path, directories) && !new File(path).exists()) {
-					mProvider.delete(ContentUris.withAppendedId(entry.mTableUri, entry.mRowId), null, null);
-					iterator.remove();
+					if (idCount > 0)
+						ids.append(',');
+					ids.append(index.rowId(i));
+					if (++idCount == DELETE_CHUNK_SIZE) {
+						deleteRows(ids);
+						idCount = 0;
+					}
 				}
 			}
 		}
+		if (idCount > 0)
+			deleteRows(ids);
 
-		mFileCache.clear();
-		mFileCache = null;
+		mIndex = null;
+		mNewFiles = null;
 		mProvider.release();
 		mProvider = null;
 	}
 
+	/**
+	 * Delete the video rows of the comma separated ids in one statement.
+	 */
+	private void deleteRows(StringBuilder ids) throws RemoteException {
+		String where = Video.Media._ID + " IN (" + ids + ")";
+		mDeletedRows += mProvider.delete(Video.Media.CONTENT_URI, where, null);
+		ids.setLength(0);
+	}
+
 	private boolean inScanDirectory(String path, String[] directories) {
 		for (int i = 0; i < directories.length; i++) {
 			if (path.startsWith(directories[i]))
@@ -140,27 +192,123 @@ public class MediaScanner {
 		return false;
 	}
 
+	/**
+	 * Probe the files of {@link #scanDirectories(String[], boolean)} on
+	 * several threads, each with a native scanner of its own, while the
+	 * directories are walked on the calling thread. Scans with more than one
+	 * worker always walk the directories in Java.
+	 *
+	 * @param count
+	 *            the number of probing threads, 1 by default
+	 */
+	public void setWorkerCount(int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("count");
+		mWorkerCount = count;
+	}
+
+	/**
+	 * Write the rows of {@link #scanDirectories(String[], boolean)} in
+	 * batches: new rows through one bulkInsert, updated ones through one
+	 * applyBatch. A batch is sent once it holds batchSize rows, or when a row
+	 * is added more than flushIntervalMs after its first one, and at the end
+	 * of the scan. Single file scans are written immediately.
+	 *
+	 * @param batchSize
+	 *            1 to write every row on its own, 100 by default
+	 * @param flushIntervalMs
+	 *            1000 by default
+	 */
+	public void setBatchLimits(int batchSize, long flushIntervalMs) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize");
+		mBatchSize = batchSize;
+		mFlushIntervalMs = flushIntervalMs;
+	}
+
 	public void scanDirectories(String[] directories) {
+		scanDirectories(directories, false);
+	}
+
+	/**
+	 * Scan the directories for media files.
+	 *
+	 * @param incremental
+	 *            skip the directories in which no file has been added, removed
+	 *            or renamed since the last incremental scan, as recorded in a
+	 *            manifest saved in the files directory. Files rewritten in place
+	 *            there are only picked up by a full scan.
+	 */
+	public void scanDirectories(String[] directories, boolean incremental) {
 		try {
 			long start = System.currentTimeMillis();
 			prescan(null);
 			long prescan = System.currentTimeMillis();
 
-			for (int i = 0; i < directories.length; i++) {
-				if (!TextUtils.isEmpty(directories[i])) {
-					directories[i] = ContextUtils.fixLastSlash(directories[i]);
-					processDirectory(directories[i], MediaFile.sFileExtensions);
+			boolean walk = incremental || mWorkerCount > 1;
+			File manifestFile = new File(mContext.getFilesDir(), MANIFEST_NAME);
+			ScanManifest last = null;
+			ScanManifest manifest = null;
+			if (walk) {
+				last = incremental ? ScanManifest.load(manifestFile) : new ScanManifest();
+				manifest = new ScanManifest();
+				mUnchangedDirs = new HashSet<String>();
+				mDirCount = mSkippedDirs = mSkippedEntries = 0;
+				mWalkInterrupted = false;
+			}
+			mScanFailed = false;
+			mProbedFiles = 0;
+			if (mBatchSize > 1)
+				mBatch = new WriteBatch();
+
+			ScanWorker[] workers = mWorkerCount > 1 ? startWorkers() : null;
+			WriteBatch batch = mBatch;
+			try {
+				for (int i = 0; i < directories.length; i++) {
+					if (!TextUtils.isEmpty(directories[i])) {
+						directories[i] = ContextUtils.fixLastSlash(directories[i]);
+						if (walk)
+							walkDirectory(directories[i], last, manifest, start - MANIFEST_SETTLE_MS);
+						else
+							processDirectory(directories[i], MediaFile.sFileExtensions);
+					}
 				}
+			} finally {
+				if (workers != null)
+					stopWorkers(workers);
+				mBatch = null;
 			}
+			if (batch != null)
+				batch.flush();
+			if (walk)
+				markUnchangedSeen();
 
 			long scan = System.currentTimeMillis();
 			postscan(directories);
+			if (walk) {
+				// Files dropped by an interrupted walk or failed to scan must be
+				// looked at again
+				if (!mWalkInterrupted && !mScanFailed) {
+					manifest.retainOutside(last, directories);
+					manifest.save(manifestFile);
+				} else {
+					Log.i("MediaScanner: scan incomplete, manifest not saved");
+				}
+				mUnchangedDirs = null;
+			}
 			long end = System.currentTimeMillis();
 
 			Log.d(" prescan time: %dms", prescan - start);
 			Log.d("    scan time: %dms", scan - prescan);
 			Log.d("postscan time: %dms", end - scan);
 			Log.d("   total time: %dms", end - start);
+			if (incremental)
+				Log.d("      skipped: %d of %d directories, %d entries", mSkippedDirs, mDirCount, mSkippedEntries);
+			Log.d("       probed: %d files by %d workers, %.1f files/s", mProbedFiles, mWorkerCount,
+					mProbedFiles * 1000f / Math.max(1, scan - prescan));
+			if (batch != null)
+				Log.d("      written: %d inserted, %d updated in %d calls", batch.mInserted, batch.mUpdated, batch.mCalls);
+			Log.d("      deleted: %d rows", mDeletedRows);
 		} catch (SQLException e) {
 			Log.e("SQLException in MediaScanner.scan()", e);
 		} catch (UnsupportedOperationException e) {
@@ -170,6 +318,148 @@ public class MediaScanner {
 		}
 	}
 
+	/**
+	 * Walk a directory tree like processDirectory, but without probing the
+	 * directories the last manifest shows unchanged: only their subdirectories
+	 * are visited.
+	 *
+	 * @param dir
+	 *            the directory path, ending with a slash
+	 * @param settled
+	 *            directories modified after this time are not trusted next
+	 *            time
+	 */
+	private void walkDirectory(String dir, ScanManifest last, ScanManifest manifest, long settled) {
+		if (mWalkInterrupted)
+			return;
+		File f = new File(dir);
+		String[] names = f.list();
+		if (names == null)
+			return;
+		mDirCount++;
+		long lastModified = f.lastModified();
+
+		ScanManifest.Dir old = last.get(dir);
+		if (old != null && old.lastModified == lastModified && old.entryCount == names.length) {
+			mSkippedDirs++;
+			mSkippedEntries += names.length;
+			mUnchangedDirs.add(cacheKey(dir));
+			manifest.put(dir, old);
+			for (String name : old.subdirs)
+				walkDirectory(dir + name + '/', last, manifest, settled);
+			return;
+		}
+
+		long recorded = lastModified < settled ? lastModified : -1;
+		for (String name : names) {
+			if (".nomedia".equals(name)) {
+				mClient.addNoMediaFolder(dir);
+				manifest.put(dir, new ScanManifest.Dir(recorded, names.length, null));
+				return;
+			}
+		}
+
+		String[] subdirs = new String[names.length];
+		int subdirCount = 0;
+		for (String name : names) {
+			File child = new File(f, name);
+			if (child.isDirectory())
+				subdirs[subdirCount++] = name;
+			else if (MediaFile.getFileType(name) != null)
+				foundFile(dir + name, child.lastModified() / 1000, child.length());
+		}
+		String[] found = new String[subdirCount];
+		System.arraycopy(subdirs, 0, found, 0, subdirCount);
+		manifest.put(dir, new ScanManifest.Dir(recorded, names.length, found));
+		for (String name : found)
+			walkDirectory(dir + name + '/', last, manifest, settled);
+	}
+
+	private void foundFile(String path, long lastModified, long fileSize) {
+		if (mQueue == null) {
+			mClient.scanFile(path, lastModified, fileSize);
+			return;
+		}
+		try {
+			mQueue.put(new ScanRequest(path, lastModified, fileSize));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			mWalkInterrupted = true;
+		}
+	}
+
+	private ScanWorker[] startWorkers() {
+		mQueue = new ArrayBlockingQueue<ScanRequest>(mWorkerCount * QUEUE_SIZE_PER_WORKER);
+		ScanWorker[] workers = new ScanWorker[mWorkerCount];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new ScanWorker(i + 1);
+			workers[i].start();
+		}
+		return workers;
+	}
+
+	/**
+	 * Wait for the workers to probe the queued files, or drop them if the
+	 * walk was interrupted.
+	 */
+	private void stopWorkers(ScanWorker[] workers) {
+		boolean interrupted = Thread.interrupted();
+		if (!interrupted) {
+			try {
+				for (int i = 0; i < workers.length; i++)
+					mQueue.put(NO_MORE_FILES);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			mQueue.clear();
+			for (ScanWorker worker : workers)
+				worker.interrupt();
+		}
+		for (ScanWorker worker : workers) {
+			while (true) {
+				try {
+					worker.join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			mProbedFiles += worker.mScanner.mProbedFiles;
+			if (worker.mScanner.mScanFailed)
+				mScanFailed = true;
+			worker.mScanner.release();
+		}
+		mQueue = null;
+		if (interrupted) {
+			mWalkInterrupted = true;
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The files of unchanged directories were not visited, keep them from
+	 * being checked and deleted by postscan.
+	 */
+	private void markUnchangedSeen() {
+		if (mUnchangedDirs.isEmpty())
+			return;
+		ScanIndex index = mIndex;
+		for (int i = 0; i < index.size(); i++) {
+			if (index.isSeen(i))
+				continue;
+			String path = index.path(i);
+			int lastSlash = path.lastIndexOf('/');
+			if (lastSlash >= 0 && mUnchangedDirs.contains(cacheKey(path.substring(0, lastSlash + 1))))
+				index.markSeen(i);
+		}
+	}
+
+	private String cacheKey(String path) {
+		return mCaseInsensitivePaths ? path.toLowerCase() : path;
+	}
+
 	public Uri scanSingleFile(String path, String mimeType) {
 		try {
 			prescan(path);
@@ -233,6 +523,129 @@ public class MediaScanner {
 		}
 	}
 
+	/**
+	 * Rows waiting to be written, shared by the workers of a scan.
+	 */
+	private final class WriteBatch {
+		private final ArrayList<ContentValues> mInserts = new ArrayList<ContentValues>();
+		private Uri mInsertUri;
+		private final ArrayList<ContentProviderOperation> mUpdates = new ArrayList<ContentProviderOperation>();
+		private long mFirstQueued;
+		int mInserted;
+		int mUpdated;
+		int mCalls;
+
+		synchronized void insert(Uri tableUri, ContentValues values) {
+			if (mInsertUri != null && !mInsertUri.equals(tableUri))
+				flush();
+			mInsertUri = tableUri;
+			mInserts.add(values);
+			queued();
+		}
+
+		synchronized void update(Uri uri, ContentValues values) {
+			mUpdates.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+			queued();
+		}
+
+		private void queued() {
+			long now = System.currentTimeMillis();
+			int size = mInserts.size() + mUpdates.size();
+			if (size == 1)
+				mFirstQueued = now;
+			if (size >= mBatchSize || now - mFirstQueued >= mFlushIntervalMs)
+				flush();
+		}
+
+		/**
+		 * Write the queued rows. The rows of a failed call are dropped and the
+		 * scan marked failed, so they are written by the next scan; the error
+		 * is not passed to the file that happened to fill the batch.
+		 */
+		synchronized void flush() {
+			if (!mInserts.isEmpty()) {
+				ContentValues[] values = mInserts.toArray(new ContentValues[mInserts.size()]);
+				try {
+					mInserted += mProvider.bulkInsert(mInsertUri, values);
+				} catch (RemoteException e) {
+					failed("insert", values.length, e);
+				} catch (RuntimeException e) {
+					failed("insert", values.length, e);
+				}
+				mInserts.clear();
+				mCalls++;
+			}
+			if (!mUpdates.isEmpty()) {
+				ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(mUpdates);
+				try {
+					mProvider.applyBatch(operations);
+					mUpdated += operations.size();
+				} catch (OperationApplicationException e) {
+					failed("update", operations.size(), e);
+				} catch (RemoteException e) {
+					failed("update", operations.size(), e);
+				} catch (RuntimeException e) {
+					failed("update", operations.size(), e);
+				}
+				mUpdates.clear();
+				mCalls++;
+			}
+		}
+
+		private void failed(String what, int rows, Exception e) {
+			Log.e("MediaScanner: batch " + what + " of " + rows + " rows failed", e);
+			mScanFailed = true;
+		}
+	}
+
+	private static final class ScanRequest {
+		final String mPath;
+		final long mLastModified;
+		final long mFileSize;
+
+		ScanRequest(String path, long lastModified, long fileSize) {
+			mPath = path;
+			mLastModified = lastModified;
+			mFileSize = fileSize;
+		}
+	}
+
+	/**
+	 * Probes queued files with a scanner of its own, which shares the file
+	 * cache and the provider of this one.
+	 */
+	private final class ScanWorker extends Thread {
+		private final MediaScanner mScanner;
+
+		ScanWorker(int index) {
+			super("VitamioScanner #" + index);
+			mScanner = new MediaScanner(mContext);
+			mScanner.mProvider = mProvider;
+			mScanner.mIndex = mIndex;
+			mScanner.mNewFiles = mNewFiles;
+			mScanner.mCaseInsensitivePaths = mCaseInsensitivePaths;
+			mScanner.mBatch = mBatch;
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			try {
+				ScanRequest request;
+				while ((request = mQueue.take()) != NO_MORE_FILES) {
+					try {
+						mScanner.mClient.scanFile(request.mPath, request.mLastModified, request.mFileSize);
+					} catch (RuntimeException e) {
+						Log.e("MediaScanner worker " + request.mPath, e);
+						mScanFailed = true;
+					}
+				}
+			} catch (InterruptedException e) {
+				// The walk was interrupted, the queued files are dropped
+			}
+		}
+	}
+
 	private class MyMediaScannerClient implements MediaScannerClient {
 		private String mMimeType;
 		private int mFileType;
@@ -272,13 +685,25 @@ public class MediaScanner {
 				mMimeType = mediaFileType.mimeType;
 			}
 
-			String key = FileUtils.getCanonical(new File(path));
-			if (mCaseInsensitivePaths)
-				key = path.toLowerCase();
-			FileCacheEntry entry = mFileCache.get(key);
-			if (entry == null) {
-				entry = new FileCacheEntry(null, 0, path, 0);
-				mFileCache.put(key, entry);
+			int index = mIndex.find(path);
+			if (index < 0) {
+				String canonical = FileUtils.getCanonical(new File(path));
+				if (!canonical.equals(path))
+					index = mIndex.find(canonical);
+			}
+			FileCacheEntry entry;
+			if (index >= 0) {
+				mIndex.markSeen(index);
+				entry = new FileCacheEntry(Video.Media.CONTENT_URI, mIndex.rowId(index), path, mIndex.lastModified(index));
+			} else {
+				String key = cacheKey(path);
+				entry = mNewFiles.get(key);
+				if (entry == null) {
+					entry = new FileCacheEntry(null, 0, path, 0);
+					FileCacheEntry raced = mNewFiles.putIfAbsent(key, entry);
+					if (raced != null)
+						entry = raced;
+				}
 			}
 			entry.mSeenInFileSystem = true;
 
@@ -286,6 +711,9 @@ public class MediaScanner {
 			if (delta > 1 || delta < -1) {
 				entry.mLastModified = lastModified;
 				entry.mLastModifiedChanged = true;
+				// Scanning the same file again in this run finds it unchanged
+				if (index >= 0)
+					mIndex.setLastModified(index, lastModified);
 			}
 
 			mPath = path;
@@ -308,17 +736,16 @@ public class MediaScanner {
 			try {
 				FileCacheEntry entry = beginFile(path, lastModified, fileSize);
 				if (entry != null && (entry.mLastModifiedChanged || scanAlways)) {
+					mProbedFiles++;
 					if (processFile(path, null)) {
 						result = endFile(entry);
 					} else {
-						if (mCaseInsensitivePaths)
-							mFileCache.remove(path.toLowerCase());
-						else
-							mFileCache.remove(path);
+						mNewFiles.remove(cacheKey(path));
 					}
 				}
 			} catch (RemoteException e) {
 				Log.e("RemoteException in MediaScanner.scanFile()", e);
+				mScanFailed = true;
 			}
 			return result;
 		}
@@ -431,7 +858,17 @@ public class MediaScanner {
 			long rowId = entry.mRowId;
 
 			Uri result = null;
-			if (rowId == 0) {
+			WriteBatch batch = mBatch;
+			if (batch != null) {
+				// The row id of a batched insert is not known, nor needed by
+				// a directory scan
+				if (rowId == 0) {
+					batch.insert(tableUri, values);
+				} else {
+					result = ContentUris.withAppendedId(tableUri, rowId);
+					batch.update(result, values);
+				}
+			} else if (rowId == 0) {
 				result = mProvider.insert(tableUri, values);
 				if (result != null) {
 					rowId = ContentUris.parseId(result);
@@ -17,10 +17,7 @@
 
 package io.vov.vitamio;
 
-import android.util.SparseArray;
-
 import java.io.UnsupportedEncodingException;
-import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -63,69 +60,103 @@ public class Metadata {
 	public static final int SEEK_AVAILABLE = 32; // Boolean
 	private static final int LAST_SYSTEM = 32;
 	private static final int FIRST_CUSTOM = 8192;
-	private SparseArray<byte[]> mMeta = new SparseArray<byte[]>();
+
+	/** The metadata a player UI usually displays, for {@link #getStrings(int[], String[])}. */
+	public static final int[] DISPLAY_KEYS = { TITLE, ARTIST, ALBUM, AUTHOR, COMPOSER, GENRE, DATE, COMMENT, COPYRIGHT };
+
+	private static final String[] KEY_NAMES = { "title", "comment", "copyright", "album", "artist", "author",
+			"composer", "genre", "creation_time", "date", "duration", "length", "bit_rate", "audio_bit_rate",
+			"video_bit_rate", "audio_sample_rate", "video_frame_rate", "format", "audio_codec", "video_codec",
+			"video_height", "video_width", "num_tracks", "cap_pause", "cap_seek" };
+	private static final int[] KEY_IDS = { TITLE, COMMENT, COPYRIGHT, ALBUM, ARTIST, AUTHOR, COMPOSER, GENRE, DATE, DATE,
+			DURATION, LENGTH, BIT_RATE, AUDIO_BIT_RATE, VIDEO_BIT_RATE, AUDIO_SAMPLE_RATE, VIDEO_FRAME_RATE, MIME_TYPE,
+			AUDIO_CODEC, VIDEO_CODEC, VIDEO_HEIGHT, VIDEO_WIDTH, NUM_TRACKS, PAUSE_AVAILABLE, SEEK_AVAILABLE };
+
+	// Perfect hash of the native key names: the multiplier is chosen when the
+	// class loads so that no two names share a slot, a lookup then costs one
+	// hash and one comparison.
+	private static final int TABLE_SIZE = 128;
+	private static final byte[][] TABLE_NAMES = new byte[TABLE_SIZE][];
+	private static final int[] TABLE_IDS = new int[TABLE_SIZE];
+	private static final int HASH_MULTIPLIER;
+
+	static {
+		int multiplier = 31;
+		while (!fillTable(multiplier))
+			multiplier += 2;
+		HASH_MULTIPLIER = multiplier;
+	}
+
+	private static boolean fillTable(int multiplier) {
+		for (int i = 0; i < TABLE_SIZE; i++)
+			TABLE_NAMES[i] = null;
+		for (int i = 0; i < KEY_NAMES.length; i++) {
+			byte[] name = KEY_NAMES[i].getBytes();
+			int slot = slot(name, 0, name.length, multiplier);
+			if (TABLE_NAMES[slot] != null)
+				return false;
+			TABLE_NAMES[slot] = name;
+			TABLE_IDS[slot] = KEY_IDS[i];
+		}
+		return true;
+	}
+
+	private static int slot(byte[] key, int start, int end, int multiplier) {
+		int h = 0;
+		for (int i = start; i < end; i++)
+			h = h * multiplier + toLower(key[i]);
+		return (h ^ (h >>> 16)) & (TABLE_SIZE - 1);
+	}
+
+	private static int toLower(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+
+	/**
+	 * @return the metadata id of a native key, matched ignoring case and
+	 *         surrounding white space, or {@link #ANY} if unknown
+	 */
+	private static int lookup(byte[] key) {
+		int start = 0;
+		int end = key.length;
+		while (start < end && (key[start] & 0xff) <= ' ')
+			start++;
+		while (end > start && (key[end - 1] & 0xff) <= ' ')
+			end--;
+		int slot = slot(key, start, end, HASH_MULTIPLIER);
+		byte[] name = TABLE_NAMES[slot];
+		if (name == null || name.length != end - start)
+			return ANY;
+		for (int i = 0; i < name.length; i++) {
+			if (toLower(key[start + i]) != name[i])
+				return ANY;
+		}
+		return TABLE_IDS[slot];
+	}
+
+	private static final byte DECODED_LONG = 1;
+	private static final byte DECODED_DOUBLE = 2;
+	private static final byte DECODED_BOOLEAN = 4;
+	private static final byte VALUE_BOOLEAN = 8;
+
+	private final byte[][] mRaw = new byte[LAST_SYSTEM + 1][];
+	private final String[] mStrings = new String[LAST_SYSTEM + 1];
+	private final long[] mLongs = new long[LAST_SYSTEM + 1];
+	private final double[] mDoubles = new double[LAST_SYSTEM + 1];
+	private final byte[] mDecoded = new byte[LAST_SYSTEM + 1];
 	private String mEncoding = "UTF-8";
 
-	public boolean parse(Map<byte[], byte[]> meta, String encoding) {
-		String key = null;
-		byte[] value = null;
+	public synchronized boolean parse(Map<byte[], byte[]> meta, String encoding) {
 		mEncoding = encoding;
-		for (byte[] keyBytes : meta.keySet()) {
-			try {
-				key = new String(keyBytes, mEncoding).trim().toLowerCase(Locale.US);
-			} catch (UnsupportedEncodingException e) {
-				key = new String(keyBytes).trim().toLowerCase(Locale.US);
-			}
-			value = meta.get(keyBytes);
-			if (key.equals("title")) {
-				mMeta.put(TITLE, value);
-			} else if (key.equals("comment")) {
-				mMeta.put(COMMENT, value);
-			} else if (key.equals("copyright")) {
-				mMeta.put(COPYRIGHT, value);
-			} else if (key.equals("album")) {
-				mMeta.put(ALBUM, value);
-			} else if (key.equals("artist")) {
-				mMeta.put(ARTIST, value);
-			} else if (key.equals("author")) {
-				mMeta.put(AUTHOR, value);
-			} else if (key.equals("composer")) {
-				mMeta.put(COMPOSER, value);
-			} else if (key.equals("genre")) {
-				mMeta.put(GENRE, value);
-			} else if (key.equals("creation_time") || key.equals("date")) {
-				mMeta.put(DATE, value);
-			} else if (key.equals("duration")) {
-				mMeta.put(DURATION, value);
-			} else if (key.equals("length")) {
-				mMeta.put(LENGTH, value);
-			} else if (key.equals("bit_rate")) {
-				mMeta.put(BIT_RATE, value);
-			} else if (key.equals("audio_bit_rate")) {
-				mMeta.put(AUDIO_BIT_RATE, value);
-			} else if (key.equals("video_bit_rate")) {
-				mMeta.put(VIDEO_BIT_RATE, value);
-			} else if (key.equals("audio_sample_rate")) {
-				mMeta.put(AUDIO_SAMPLE_RATE, value);
-			} else if (key.equals("video_frame_rate")) {
-				mMeta.put(VIDEO_FRAME_RATE, value);
-			} else if (key.equals("format")) {
-				mMeta.put(MIME_TYPE, value);
-			} else if (key.equals("audio_codec")) {
-				mMeta.put(AUDIO_CODEC, value);
-			} else if (key.equals("video_codec")) {
-				mMeta.put(VIDEO_CODEC, value);
-			} else if (key.equals("video_height")) {
-				mMeta.put(VIDEO_HEIGHT, value);
-			} else if (key.equals("video_width")) {
-				mMeta.put(VIDEO_WIDTH, value);
-			} else if (key.equals("num_tracks")) {
-				mMeta.put(NUM_TRACKS, value);
-			} else if (key.equals("cap_pause")) {
-				mMeta.put(PAUSE_AVAILABLE, value);
-			} else if (key.equals("cap_seek")) {
-				mMeta.put(SEEK_AVAILABLE, value);
-			}
+		for (int i = 0; i <= LAST_SYSTEM; i++) {
+			mRaw[i] = null;
+			mStrings[i] = null;
+			mDecoded[i] = 0;
+		}
+		for (Map.Entry<byte[], byte[]> entry : meta.entrySet()) {
+			int id = lookup(entry.getKey());
+			if (id != ANY)
+				mRaw[id] = entry.getValue();
 		}
 
 		if (BuildConfig.DEBUG) {
@@ -157,59 +188,161 @@ public class Metadata {
 		return true;
 	}
 
-	public boolean has(final int metadataId) {
+	public synchronized boolean has(final int metadataId) {
 		if (!checkMetadataId(metadataId)) {
 			throw new IllegalArgumentException("Invalid key: " + metadataId);
 		}
-		return mMeta.indexOfKey(metadataId) >= 0;
+		return metadataId <= LAST_SYSTEM && mRaw[metadataId] != null;
 	}
 
-	public String getString(final int key) {
-		byte[] value = mMeta.get(key);
-		if (value == null) {
+	public synchronized String getString(final int key) {
+		if (key <= ANY || key > LAST_SYSTEM)
 			return null;
+		String s = mStrings[key];
+		if (s == null) {
+			byte[] value = mRaw[key];
+			if (value == null)
+				return null;
+			try {
+				s = new String(value, mEncoding);
+			} catch (UnsupportedEncodingException e) {
+				s = new String(value);
+			}
+			mStrings[key] = s;
 		}
-		try {
-			return new String(value, mEncoding);
-		} catch (UnsupportedEncodingException e) {
-			return new String(value);
-		}
+		return s;
 	}
 
-	public int getInt(final int key) {
-		try {
-			return Integer.parseInt(getString(key));
-		} catch (Exception e) {
-			return -1;
+	/**
+	 * Read several string values at once, e.g. {@link #DISPLAY_KEYS}.
+	 * 
+	 * @param keys
+	 *            the metadata ids
+	 * @param values
+	 *            receives the value of each key, null where absent
+	 * @return the number of keys that have a value
+	 */
+	public synchronized int getStrings(int[] keys, String[] values) {
+		int count = 0;
+		for (int i = 0; i < keys.length; i++) {
+			values[i] = getString(keys[i]);
+			if (values[i] != null)
+				count++;
 		}
+		return count;
 	}
 
-	public boolean getBoolean(final int key) {
-		try {
-			return Boolean.parseBoolean(getString(key));
-		} catch (Exception e) {
+	public synchronized int getInt(final int key) {
+		long value = getLong(key);
+		return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? -1 : (int) value;
+	}
+
+	public synchronized boolean getBoolean(final int key) {
+		if (key <= ANY || key > LAST_SYSTEM)
 			return false;
+		if ((mDecoded[key] & DECODED_BOOLEAN) == 0) {
+			mDecoded[key] |= DECODED_BOOLEAN;
+			if ("true".equalsIgnoreCase(getString(key)))
+				mDecoded[key] |= VALUE_BOOLEAN;
 		}
+		return (mDecoded[key] & VALUE_BOOLEAN) != 0;
 	}
 
-	public long getLong(final int key) {
-		try {
-			return Long.parseLong(getString(key));
-		} catch (Exception e) {
+	public synchronized long getLong(final int key) {
+		if (key <= ANY || key > LAST_SYSTEM)
 			return -1;
+		if ((mDecoded[key] & DECODED_LONG) == 0) {
+			mLongs[key] = parseLong(getString(key));
+			mDecoded[key] |= DECODED_LONG;
 		}
+		return mLongs[key];
 	}
 
-	public double getDouble(final int key) {
-		try {
-			return Double.parseDouble(getString(key));
-		} catch (Exception e) {
+	public synchronized double getDouble(final int key) {
+		if (key <= ANY || key > LAST_SYSTEM)
 			return -1;
+		if ((mDecoded[key] & DECODED_DOUBLE) == 0) {
+			mDoubles[key] = parseDouble(getString(key));
+			mDecoded[key] |= DECODED_DOUBLE;
 		}
+		return mDoubles[key];
 	}
 
-	public byte[] getByteArray(final int key) {
-		return mMeta.get(key);
+	public synchronized byte[] getByteArray(final int key) {
+		return key <= ANY || key > LAST_SYSTEM ? null : mRaw[key];
+	}
+
+	/**
+	 * @return the decimal value, -1 if the string is not a valid long
+	 */
+	private static long parseLong(String s) {
+		if (s == null || s.length() == 0)
+			return -1;
+		int i = 0;
+		boolean negative = false;
+		char first = s.charAt(0);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			if (++i == s.length())
+				return -1;
+		}
+		// Accumulate negatively, like Long.parseLong, to reach Long.MIN_VALUE
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multiplyLimit = limit / 10;
+		long result = 0;
+		for (; i < s.length(); i++) {
+			int digit = s.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || result < multiplyLimit)
+				return -1;
+			result *= 10;
+			if (result < limit + digit)
+				return -1;
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/**
+	 * Plain decimals such as "29.97" are converted directly and exactly;
+	 * anything else goes through {@link Double#parseDouble(String)}.
+	 * 
+	 * @return the value, -1 if the string is not a number
+	 */
+	private static double parseDouble(String s) {
+		if (s == null || s.length() == 0)
+			return -1;
+		int i = 0;
+		boolean negative = s.charAt(0) == '-';
+		if (negative || s.charAt(0) == '+')
+			i++;
+		long mantissa = 0;
+		int digits = 0;
+		int fraction = -1;
+		for (; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '.' && fraction < 0) {
+				fraction = 0;
+			} else if (c >= '0' && c <= '9' && mantissa < (1L << 53) / 10) {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (fraction >= 0)
+					fraction++;
+			} else {
+				break;
+			}
+		}
+		if (i == s.length() && digits > 0 && fraction < POWERS_OF_TEN.length) {
+			double value = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+			return negative ? -value : value;
+		}
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
 	}
 
 	private boolean checkMetadataId(final int val) {
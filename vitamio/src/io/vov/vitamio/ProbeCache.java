@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.util.SparseArray;
+
+import io.vov.vitamio.utils.Crypto;
+import io.vov.vitamio.utils.IOUtils;
+import io.vov.vitamio.utils.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-disk cache of what probing a media source found: the native metadata
+ * of {@link MediaPlayer#getMetadata()}, the track descriptors of
+ * {@link MediaPlayer#getTrackInfo()} and the values of
+ * {@link MediaMetadataRetriever#extractCachedMetadata(String)}. Reopening a
+ * source then skips the native probe for them.
+ * <p>
+ * Entries are keyed by {@link #fileKey(String)} for local files, so a
+ * modified file is probed again, or by {@link #urlKey(String, String)} for
+ * remote content. Each entry is a small binary file; the least recently used
+ * ones are deleted once the cache grows over its size limit. Raw bytes are
+ * stored, so the text encoding can still be chosen when reading.
+ * </p>
+ */
+public final class ProbeCache {
+	private static final int MAGIC = 0x56505243;
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".probe";
+
+	private final File mDir;
+	private final long mMaxBytes;
+	/** File name to file size, in least recently used order. */
+	private final LinkedHashMap<String, Long> mFiles = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long mTotalBytes;
+
+	private ProbeCache(File dir, long maxBytes) {
+		mDir = dir;
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * @param dir
+	 *            the cache directory, e.g. a folder in getCacheDir()
+	 * @param maxBytes
+	 *            the size the cache is trimmed to
+	 * @return null if the directory can't be created
+	 */
+	public static ProbeCache open(File dir, long maxBytes) {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			Log.e("ProbeCache: can't create %s", dir);
+			return null;
+		}
+		ProbeCache cache = new ProbeCache(dir, maxBytes);
+		File[] files = dir.listFiles();
+		if (files != null) {
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(File lhs, File rhs) {
+					long l = lhs.lastModified();
+					long r = rhs.lastModified();
+					return l < r ? -1 : (l == r ? 0 : 1);
+				}
+			});
+			for (File f : files) {
+				if (f.getName().endsWith(SUFFIX)) {
+					cache.mFiles.put(f.getName(), f.length());
+					cache.mTotalBytes += f.length();
+				}
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * @return the key of a local file, changing when the file does, or null
+	 *         if the path is not an existing file
+	 */
+	public static String fileKey(String path) {
+		if (path == null)
+			return null;
+		File f = new File(path);
+		if (!f.isFile())
+			return null;
+		return f.getAbsolutePath() + '|' + f.length() + '|' + f.lastModified();
+	}
+
+	/**
+	 * @param etag
+	 *            the ETag or another version tag of the content
+	 * @return the key of remote content
+	 */
+	public static String urlKey(String url, String etag) {
+		return url + '|' + etag;
+	}
+
+	public synchronized void clear() {
+		for (String name : mFiles.keySet())
+			new File(mDir, name).delete();
+		mFiles.clear();
+		mTotalBytes = 0;
+	}
+
+	/**
+	 * What is known about one source. Parts that have not been probed yet are
+	 * null.
+	 */
+	static final class Entry {
+		Map<byte[], byte[]> metadata;
+		SparseArray<byte[]> tracks;
+		Map<String, String> extracted;
+	}
+
+	/**
+	 * @return the entry, or null if the source is not cached
+	 */
+	synchronized Entry get(String key) {
+		String name = fileName(key);
+		// get(), not containsKey(), moves the file to the end of the LRU order
+		if (mFiles.get(name) == null)
+			return null;
+		File f = new File(mDir, name);
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			Entry entry = read(in, key);
+			if (entry != null)
+				f.setLastModified(System.currentTimeMillis());
+			return entry;
+		} catch (IOException e) {
+			Log.e("ProbeCache: can't read %s", f);
+			remove(name);
+			return null;
+		} finally {
+			IOUtils.closeSilently(in);
+		}
+	}
+
+	/**
+	 * Store the parts of the entry that are not null, keeping the others as
+	 * they are cached.
+	 */
+	synchronized void put(String key, Entry update) {
+		Entry entry = get(key);
+		if (entry == null)
+			entry = new Entry();
+		if (update.metadata != null)
+			entry.metadata = update.metadata;
+		if (update.tracks != null)
+			entry.tracks = update.tracks;
+		if (update.extracted != null)
+			entry.extracted = update.extracted;
+
+		String name = fileName(key);
+		File tmp = new File(mDir, name + ".tmp");
+		File f = new File(mDir, name);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			write(out, key, entry);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(f))
+				throw new IOException("rename failed");
+		} catch (IOException e) {
+			Log.e("ProbeCache: can't write " + f, e);
+			tmp.delete();
+			return;
+		} finally {
+			IOUtils.closeSilently(out);
+		}
+
+		Long old = mFiles.put(name, f.length());
+		mTotalBytes += f.length() - (old != null ? old : 0);
+		trim();
+	}
+
+	private void trim() {
+		Iterator<Map.Entry<String, Long>> it = mFiles.entrySet().iterator();
+		while (mTotalBytes > mMaxBytes && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			new File(mDir, eldest.getKey()).delete();
+			mTotalBytes -= eldest.getValue();
+			it.remove();
+		}
+	}
+
+	private void remove(String name) {
+		Long size = mFiles.remove(name);
+		if (size != null)
+			mTotalBytes -= size;
+		new File(mDir, name).delete();
+	}
+
+	private static String fileName(String key) {
+		return Crypto.md5(key) + SUFFIX;
+	}
+
+	private static Entry read(DataInputStream in, String key) throws IOException {
+		if (in.readInt() != MAGIC || in.readByte() != VERSION || !key.equals(in.readUTF()))
+			return null;
+		Entry entry = new Entry();
+		int count = in.readInt();
+		if (count >= 0) {
+			entry.metadata = new HashMap<byte[], byte[]>(count * 2);
+			for (int i = 0; i < count; i++)
+				entry.metadata.put(readBytes(in), readBytes(in));
+		}
+		count = in.readInt();
+		if (count >= 0) {
+			entry.tracks = new SparseArray<byte[]>(count);
+			for (int i = 0; i < count; i++)
+				entry.tracks.put(in.readInt(), readBytes(in));
+		}
+		count = in.readInt();
+		if (count >= 0) {
+			entry.extracted = new HashMap<String, String>(count * 2);
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				byte[] value = readBytes(in);
+				entry.extracted.put(name, value != null ? new String(value, "UTF-8") : null);
+			}
+		}
+		return entry;
+	}
+
+	private static void write(DataOutputStream out, String key, Entry entry) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeUTF(key);
+		if (entry.metadata == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(entry.metadata.size());
+			for (Map.Entry<byte[], byte[]> e : entry.metadata.entrySet()) {
+				writeBytes(out, e.getKey());
+				writeBytes(out, e.getValue());
+			}
+		}
+		if (entry.tracks == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(entry.tracks.size());
+			for (int i = 0; i < entry.tracks.size(); i++) {
+				out.writeInt(entry.tracks.keyAt(i));
+				writeBytes(out, entry.tracks.valueAt(i));
+			}
+		}
+		if (entry.extracted == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(entry.extracted.size());
+			for (Map.Entry<String, String> e : entry.extracted.entrySet()) {
+				out.writeUTF(e.getKey());
+				writeBytes(out, e.getValue() != null ? e.getValue().getBytes("UTF-8") : null);
+			}
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] b = new byte[length];
+		in.readFully(b);
+		return b;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+		if (b == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+}
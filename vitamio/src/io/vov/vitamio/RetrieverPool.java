@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import io.vov.vitamio.utils.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link MediaMetadataRetriever} work for many files on a few threads,
+ * reusing the retrievers instead of creating and releasing one per file.
+ * <p>
+ * At most <code>parallelism</code> requests run at once, each with a
+ * retriever of its own, so no more retrievers than that ever exist. Pending
+ * requests run highest priority first, in submission order for equal
+ * priorities. A request cancelled before it started never opens its file.
+ * Consecutive requests for the same file on one retriever open it once,
+ * unless its size or modification time changed in between. A retriever left
+ * without requests for {@link #IDLE_TIMEOUT_MS} is released, so no file stays
+ * open and removable storage can be unmounted.
+ * </p>
+ *
+ * <pre>
+ * RetrieverPool pool = new RetrieverPool(context, 2);
+ * Future&lt;String&gt; duration = pool.extractMetadata(path, METADATA_KEY_DURATION, 0);
+ * </pre>
+ */
+public final class RetrieverPool {
+	/** How long an idle worker keeps its retriever before releasing it. */
+	public static final long IDLE_TIMEOUT_MS = 3000;
+
+	/**
+	 * Work done with a retriever whose data source is already set.
+	 */
+	public interface Task<T> {
+		T run(MediaMetadataRetriever retriever) throws Exception;
+	}
+
+	/**
+	 * Told when a request is done, whether it succeeded, failed or was
+	 * cancelled.
+	 */
+	public interface OnDoneListener<T> {
+		/**
+		 * Called on the worker thread, or on the cancelling thread.
+		 * 
+		 * @param future
+		 *            the completed request, get() does not block
+		 */
+		void onDone(Future<T> future);
+	}
+
+	private final Context mContext;
+	private final Executor mExecutor;
+	private final boolean mOwnExecutor;
+	private final int mParallelism;
+	private final PriorityBlockingQueue<Request<?>> mQueue = new PriorityBlockingQueue<Request<?>>();
+	private final AtomicInteger mActive = new AtomicInteger();
+	private final AtomicLong mSequence = new AtomicLong();
+	private volatile boolean mShutdown;
+
+	/**
+	 * Run requests on background threads owned by the pool.
+	 */
+	public RetrieverPool(Context ctx, int parallelism) {
+		this(ctx, Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "RetrieverPool #" + mCount.incrementAndGet());
+			}
+		}), parallelism, true);
+	}
+
+	/**
+	 * Run requests on the given Executor, using at most
+	 * <code>parallelism</code> of its threads at once.
+	 */
+	public RetrieverPool(Context ctx, Executor executor, int parallelism) {
+		this(ctx, executor, parallelism, false);
+	}
+
+	private RetrieverPool(Context ctx, Executor executor, int parallelism, boolean ownExecutor) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism");
+		mContext = ctx.getApplicationContext() != null ? ctx.getApplicationContext() : ctx;
+		mExecutor = executor;
+		mParallelism = parallelism;
+		mOwnExecutor = ownExecutor;
+	}
+
+	/**
+	 * Queue work on a retriever set to the file.
+	 *
+	 * @param priority
+	 *            higher runs first
+	 * @return the result of the task; cancel it to drop the request
+	 */
+	public <T> Future<T> submit(String path, int priority, Task<T> task) {
+		return submit(path, priority, task, null);
+	}
+
+	/**
+	 * Like {@link #submit(String, int, Task)}, calling the listener once the
+	 * request is done.
+	 */
+	public <T> Future<T> submit(String path, int priority, Task<T> task, OnDoneListener<T> listener) {
+		if (mShutdown)
+			throw new IllegalStateException("RetrieverPool is shut down");
+		Request<T> request = new Request<T>(new Job<T>(path, task), priority, mSequence.getAndIncrement(),
+				listener);
+		mQueue.add(request);
+		if (mShutdown) {
+			// shutdown() may have drained the queue before the add
+			request.cancel(false);
+			throw new IllegalStateException("RetrieverPool is shut down");
+		}
+		schedule();
+		return request;
+	}
+
+	/**
+	 * @see MediaMetadataRetriever#extractMetadata(String)
+	 */
+	public Future<String> extractMetadata(String path, final String keyCode, int priority) {
+		return submit(path, priority, new Task<String>() {
+			@Override
+			public String run(MediaMetadataRetriever retriever) {
+				return retriever.extractMetadata(keyCode);
+			}
+		});
+	}
+
+	/**
+	 * @see MediaMetadataRetriever#getFrameAtTime(long)
+	 */
+	public Future<Bitmap> getFrameAtTime(String path, final long timeUs, int priority) {
+		return submit(path, priority, new Task<Bitmap>() {
+			@Override
+			public Bitmap run(MediaMetadataRetriever retriever) {
+				return retriever.getFrameAtTime(timeUs);
+			}
+		});
+	}
+
+	/**
+	 * @see MediaMetadataRetriever#getEmbeddedPicture()
+	 */
+	public Future<byte[]> getEmbeddedPicture(String path, int priority) {
+		return submit(path, priority, new Task<byte[]>() {
+			@Override
+			public byte[] run(MediaMetadataRetriever retriever) {
+				return retriever.getEmbeddedPicture();
+			}
+		});
+	}
+
+	/**
+	 * The pooled equivalent of
+	 * {@link ThumbnailUtils#createVideoThumbnail(Context, String, int)}.
+	 */
+	public Future<Bitmap> createVideoThumbnail(String path, final int kind, int priority) {
+		return submit(path, priority, new Task<Bitmap>() {
+			@Override
+			public Bitmap run(MediaMetadataRetriever retriever) {
+				return ThumbnailUtils.scaleVideoThumbnail(retriever.getFrameAtTime(-1), kind);
+			}
+		});
+	}
+
+	/**
+	 * Cancel the pending requests and release the retrievers once the running
+	 * ones finish.
+	 */
+	public void shutdown() {
+		mShutdown = true;
+		Request<?> request;
+		while ((request = mQueue.poll()) != null)
+			request.cancel(false);
+		// Idle workers of a shared executor exit within IDLE_TIMEOUT_MS
+		if (mOwnExecutor)
+			((ExecutorService) mExecutor).shutdownNow();
+	}
+
+	private void schedule() {
+		while (true) {
+			int active = mActive.get();
+			if (active >= mParallelism || mQueue.isEmpty())
+				return;
+			if (mActive.compareAndSet(active, active + 1)) {
+				try {
+					mExecutor.execute(mWorker);
+				} catch (RejectedExecutionException e) {
+					mActive.decrementAndGet();
+					Log.e("RetrieverPool", e);
+				}
+				return;
+			}
+		}
+	}
+
+	private final Runnable mWorker = new Runnable() {
+		@Override
+		public void run() {
+			Slot slot = new Slot();
+			try {
+				Request<?> request;
+				while (!mShutdown && (request = next()) != null) {
+					request.mJob.mSlot = slot;
+					request.run();
+					request.mJob.mSlot = null;
+				}
+			} finally {
+				// An idle retriever keeps its file open
+				slot.release();
+				mActive.decrementAndGet();
+			}
+			// A request may have been queued after the last poll, while the
+			// pool still looked busy
+			schedule();
+		}
+	};
+
+	/**
+	 * @return the next request, null once the worker was idle for
+	 *         IDLE_TIMEOUT_MS or is interrupted
+	 */
+	private Request<?> next() {
+		try {
+			return mQueue.poll(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * A retriever and the file it is set to.
+	 */
+	private final class Slot {
+		private MediaMetadataRetriever mRetriever;
+		/** The file key of the data source, or its path if it is not a file. */
+		private String mSource;
+
+		<T> T run(String path, Task<T> task) throws Exception {
+			try {
+				if (mRetriever == null)
+					mRetriever = new MediaMetadataRetriever(mContext);
+				String fileKey = ProbeCache.fileKey(path);
+				String source = fileKey != null ? fileKey : path;
+				if (!source.equals(mSource)) {
+					mSource = null;
+					mRetriever.setDataSource(path);
+					mSource = source;
+				}
+				return task.run(mRetriever);
+			} catch (Exception e) {
+				// The native state is unknown after a failure, start over
+				Log.e("RetrieverPool " + path, e);
+				release();
+				throw e;
+			}
+		}
+
+		void release() {
+			if (mRetriever != null) {
+				try {
+					mRetriever.release();
+				} catch (RuntimeException e) {
+				}
+				mRetriever = null;
+			}
+			mSource = null;
+		}
+	}
+
+	private final class Job<T> implements Callable<T> {
+		private final String mPath;
+		private final Task<T> mTask;
+		private Slot mSlot;
+
+		Job(String path, Task<T> task) {
+			mPath = path;
+			mTask = task;
+		}
+
+		@Override
+		public T call() throws Exception {
+			return mSlot.run(mPath, mTask);
+		}
+	}
+
+	private final class Request<T> extends FutureTask<T> implements Comparable<Request<?>> {
+		private final Job<T> mJob;
+		private final int mPriority;
+		private final long mSequence;
+		private final OnDoneListener<T> mListener;
+
+		Request(Job<T> job, int priority, long sequence, OnDoneListener<T> listener) {
+			super(job);
+			mJob = job;
+			mPriority = priority;
+			mSequence = sequence;
+			mListener = listener;
+		}
+
+		@Override
+		protected void done() {
+			if (mListener != null)
+				mListener.onDone(this);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled)
+				mQueue.remove(this);
+			return cancelled;
+		}
+
+		@Override
+		public int compareTo(Request<?> another) {
+			if (mPriority != another.mPriority)
+				return mPriority > another.mPriority ? -1 : 1;
+			return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+		}
+	}
+}
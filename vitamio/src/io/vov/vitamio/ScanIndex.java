@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import java.util.Arrays;
+
+/**
+ * The rows {@link MediaScanner} found in the database before scanning, held in
+ * parallel arrays: the paths as stored, the row ids and modification times
+ * as primitives, and a flag per row. Paths are looked up through an open
+ * addressing table of their hashes, case-folded if the paths are case
+ * insensitive, so neither a lower-cased copy nor a map entry is kept per row.
+ * <p>
+ * Rows are added on one thread, then {@link #seal()} builds the table. From
+ * then on lookups may run on any thread, and each row's flag and time are
+ * only written by the thread that scans that file.
+ * </p>
+ */
+final class ScanIndex {
+	private static final byte SEEN = 1;
+
+	private final boolean mCaseInsensitive;
+	private String[] mPaths;
+	private long[] mRowIds;
+	private long[] mLastModified;
+	private int[] mHashes;
+	private byte[] mFlags;
+	private int mSize;
+	/** Row index + 1 per slot, 0 for free slots. */
+	private int[] mTable;
+	private int mMask;
+
+	ScanIndex(boolean caseInsensitive, int capacity) {
+		mCaseInsensitive = caseInsensitive;
+		capacity = Math.max(capacity, 16);
+		mPaths = new String[capacity];
+		mRowIds = new long[capacity];
+		mLastModified = new long[capacity];
+	}
+
+	void add(String path, long rowId, long lastModified) {
+		if (mSize == mPaths.length) {
+			int capacity = mSize * 3 / 2 + 1;
+			mPaths = Arrays.copyOf(mPaths, capacity);
+			mRowIds = Arrays.copyOf(mRowIds, capacity);
+			mLastModified = Arrays.copyOf(mLastModified, capacity);
+		}
+		mPaths[mSize] = path;
+		mRowIds[mSize] = rowId;
+		mLastModified[mSize] = lastModified;
+		mSize++;
+	}
+
+	/**
+	 * Build the lookup table of the added rows.
+	 */
+	void seal() {
+		mHashes = new int[mSize];
+		mFlags = new byte[mSize];
+		int tableSize = Integer.highestOneBit(Math.max(mSize * 2, 16) - 1) << 1;
+		mTable = new int[tableSize];
+		mMask = tableSize - 1;
+		for (int i = 0; i < mSize; i++) {
+			int hash = hash(mPaths[i]);
+			mHashes[i] = hash;
+			int slot = hash & mMask;
+			while (mTable[slot] != 0)
+				slot = (slot + 1) & mMask;
+			mTable[slot] = i + 1;
+		}
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return the row of the path, -1 if there is none
+	 */
+	int find(String path) {
+		int hash = hash(path);
+		int slot = hash & mMask;
+		int index;
+		while ((index = mTable[slot]) != 0) {
+			index--;
+			String other = mPaths[index];
+			if (mHashes[index] == hash && other.length() == path.length()
+					&& other.regionMatches(mCaseInsensitive, 0, path, 0, path.length()))
+				return index;
+			slot = (slot + 1) & mMask;
+		}
+		return -1;
+	}
+
+	String path(int index) {
+		return mPaths[index];
+	}
+
+	long rowId(int index) {
+		return mRowIds[index];
+	}
+
+	long lastModified(int index) {
+		return mLastModified[index];
+	}
+
+	void setLastModified(int index, long lastModified) {
+		mLastModified[index] = lastModified;
+	}
+
+	boolean isSeen(int index) {
+		return (mFlags[index] & SEEN) != 0;
+	}
+
+	void markSeen(int index) {
+		mFlags[index] |= SEEN;
+	}
+
+	private int hash(String path) {
+		int h = 0;
+		int length = path.length();
+		for (int i = 0; i < length; i++) {
+			char c = path.charAt(i);
+			h = 31 * h + (mCaseInsensitive ? Character.toLowerCase(Character.toUpperCase(c)) : c);
+		}
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import io.vov.vitamio.utils.IOUtils;
+import io.vov.vitamio.utils.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * What {@link MediaScanner} saw of each directory during its last scan: the
+ * modification time, the number of entries and the names of the
+ * subdirectories. A directory whose time and entry count are unchanged has
+ * had no file added, removed or renamed, so its files need no probing and its
+ * subdirectories can be visited without listing it again.
+ */
+final class ScanManifest {
+	private static final int MAGIC = 0x56534d46;
+	private static final int VERSION = 1;
+	private static final String[] NO_NAMES = new String[0];
+
+	static final class Dir {
+		final long lastModified;
+		final int entryCount;
+		final String[] subdirs;
+
+		Dir(long lastModified, int entryCount, String[] subdirs) {
+			this.lastModified = lastModified;
+			this.entryCount = entryCount;
+			this.subdirs = subdirs != null ? subdirs : NO_NAMES;
+		}
+	}
+
+	/** Directory path, ending with a slash, to what was seen there. */
+	private final HashMap<String, Dir> mDirs;
+
+	ScanManifest() {
+		mDirs = new HashMap<String, Dir>();
+	}
+
+	private ScanManifest(int capacity) {
+		mDirs = new HashMap<String, Dir>(capacity);
+	}
+
+	Dir get(String dir) {
+		return mDirs.get(dir);
+	}
+
+	void put(String dir, Dir seen) {
+		mDirs.put(dir, seen);
+	}
+
+	int size() {
+		return mDirs.size();
+	}
+
+	/**
+	 * Keep the directories of an older manifest that are not under any of the
+	 * roots, which this scan did not visit.
+	 */
+	void retainOutside(ScanManifest older, String[] roots) {
+		Iterator<Map.Entry<String, Dir>> it = older.mDirs.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Dir> e = it.next();
+			String dir = e.getKey();
+			boolean inside = false;
+			for (String root : roots) {
+				if (root != null && root.length() > 0 && dir.startsWith(root)) {
+					inside = true;
+					break;
+				}
+			}
+			if (!inside && !mDirs.containsKey(dir))
+				mDirs.put(dir, e.getValue());
+		}
+	}
+
+	/**
+	 * @return the saved manifest, empty if there is none or it can't be read
+	 */
+	static ScanManifest load(File f) {
+		if (!f.isFile())
+			return new ScanManifest();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if (in.readInt() != MAGIC || in.readByte() != VERSION)
+				return new ScanManifest();
+			int count = in.readInt();
+			ScanManifest manifest = new ScanManifest(count * 4 / 3 + 1);
+			for (int i = 0; i < count; i++) {
+				String dir = in.readUTF();
+				long lastModified = in.readLong();
+				int entryCount = in.readInt();
+				String[] subdirs = new String[in.readInt()];
+				for (int j = 0; j < subdirs.length; j++)
+					subdirs[j] = in.readUTF();
+				manifest.mDirs.put(dir, new Dir(lastModified, entryCount, subdirs));
+			}
+			return manifest;
+		} catch (IOException e) {
+			Log.e("ScanManifest: can't read %s", f);
+			return new ScanManifest();
+		} finally {
+			IOUtils.closeSilently(in);
+		}
+	}
+
+	void save(File f) {
+		File tmp = new File(f.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeInt(mDirs.size());
+			for (Map.Entry<String, Dir> e : mDirs.entrySet()) {
+				Dir dir = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeLong(dir.lastModified);
+				out.writeInt(dir.entryCount);
+				out.writeInt(dir.subdirs.length);
+				for (String name : dir.subdirs)
+					out.writeUTF(name);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(f))
+				throw new IOException("rename failed");
+		} catch (IOException e) {
+			Log.e("ScanManifest: can't write " + f, e);
+			tmp.delete();
+		} finally {
+			IOUtils.closeSilently(out);
+		}
+	}
+}
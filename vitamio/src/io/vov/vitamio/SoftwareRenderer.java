@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Process;
+import android.view.Surface;
+
+import io.vov.vitamio.utils.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Software video output. The decoder writes each RGB565 frame into
+ * {@link #getBuffer()} and calls {@link #onFrame()}, which only copies the
+ * pixels into one of a few frame bitmaps. A render thread draws the newest
+ * copied frame to the Surface, so the decoder never waits for Canvas
+ * composition. Frames replaced before the render thread got to them are
+ * dropped. The last drawn frame is kept for {@link MediaPlayer} frame capture.
+ */
+final class SoftwareRenderer implements Runnable {
+	/** One frame shown, one ready and one being copied. */
+	private static final int FRAME_COUNT = 3;
+
+	private final Surface mSurface;
+	private final int mWidth;
+	private final int mHeight;
+	private final ByteBuffer mBuffer;
+	private final Bitmap[] mFree = new Bitmap[FRAME_COUNT];
+	private final Thread mThread;
+	private int mFreeCount;
+	private int mAllocated;
+	private Bitmap mPending;
+	private Bitmap mShown;
+	private boolean mQuit;
+
+	private volatile long mRenderedCount;
+	private volatile long mDroppedCount;
+
+	SoftwareRenderer(Surface surface, int width, int height) {
+		mSurface = surface;
+		mWidth = width;
+		mHeight = height;
+		mBuffer = ByteBuffer.allocateDirect(width * height * 2);
+		mThread = new Thread(this, "VitamioRender");
+		mThread.start();
+	}
+
+	/**
+	 * @return the direct buffer the decoder writes frames into
+	 */
+	ByteBuffer getBuffer() {
+		return mBuffer;
+	}
+
+	long getRenderedCount() {
+		return mRenderedCount;
+	}
+
+	long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/**
+	 * Called on the decoder thread once a frame has been written into the
+	 * buffer. Returns as soon as the frame is copied.
+	 */
+	void onFrame() {
+		Bitmap frame;
+		synchronized (this) {
+			if (mQuit)
+				return;
+			if (mFreeCount > 0) {
+				frame = mFree[--mFreeCount];
+				mFree[mFreeCount] = null;
+			} else if (mAllocated < FRAME_COUNT) {
+				try {
+					frame = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.RGB_565);
+				} catch (OutOfMemoryError e) {
+					Log.e("SoftwareRenderer", e);
+					mDroppedCount++;
+					return;
+				}
+				mAllocated++;
+			} else if (mPending != null) {
+				frame = mPending;
+				mPending = null;
+				mDroppedCount++;
+			} else {
+				mDroppedCount++;
+				return;
+			}
+		}
+
+		mBuffer.rewind();
+		frame.copyPixelsFromBuffer(mBuffer);
+
+		synchronized (this) {
+			if (mPending != null) {
+				mFree[mFreeCount++] = mPending;
+				mDroppedCount++;
+			}
+			mPending = frame;
+			notify();
+		}
+	}
+
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+		while (true) {
+			Bitmap frame;
+			synchronized (this) {
+				while (mPending == null && !mQuit) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						mQuit = true;
+					}
+				}
+				if (mQuit)
+					return;
+				frame = mPending;
+				mPending = null;
+			}
+
+			if (draw(frame))
+				mRenderedCount++;
+			else
+				mDroppedCount++;
+
+			synchronized (this) {
+				if (mShown != null)
+					mFree[mFreeCount++] = mShown;
+				mShown = frame;
+			}
+		}
+	}
+
+	/**
+	 * Copy the last drawn frame into the bitmap, scaling it if the size
+	 * differs.
+	 * 
+	 * @return false if no frame has been drawn yet
+	 */
+	synchronized boolean copyShown(FrameCapture capture, Bitmap dst) {
+		if (mShown == null || mQuit)
+			return false;
+		capture.draw(mShown, dst);
+		return true;
+	}
+
+	/**
+	 * Copy the RGB565 pixels of the last drawn frame into the buffer,
+	 * advancing its position.
+	 * 
+	 * @return false if no frame has been drawn yet or the buffer is too small
+	 */
+	synchronized boolean copyShown(ByteBuffer dst) {
+		if (mShown == null || mQuit || dst.remaining() < mWidth * mHeight * 2)
+			return false;
+		mShown.copyPixelsToBuffer(dst);
+		return true;
+	}
+
+	private boolean draw(Bitmap frame) {
+		if (!mSurface.isValid())
+			return false;
+		try {
+			Canvas c = mSurface.lockCanvas(null);
+			c.drawBitmap(frame, 0, 0, null);
+			mSurface.unlockCanvasAndPost(c);
+			return true;
+		} catch (Exception e) {
+			Log.e("surfaceRender", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Stop the render thread and wait until it no longer touches the Surface.
+	 */
+	void release() {
+		synchronized (this) {
+			mQuit = true;
+			notify();
+		}
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			for (int i = 0; i < mFreeCount; i++) {
+				mFree[i].recycle();
+				mFree[i] = null;
+			}
+			mFreeCount = 0;
+			if (mPending != null) {
+				mPending.recycle();
+				mPending = null;
+			}
+			if (mShown != null) {
+				mShown.recycle();
+				mShown = null;
+			}
+		}
+	}
+}
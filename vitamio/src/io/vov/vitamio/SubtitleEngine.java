@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import io.vov.vitamio.MediaPlayer.OnTimedTextListener;
+import io.vov.vitamio.utils.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Java alternative to {@link MediaPlayer#addTimedTextSource(String)} for
+ * large external text subtitles. The file is parsed once into cue arrays
+ * sorted by start time. These arrays are also an interval tree: the middle
+ * cue of every range is a node, and it stores the latest end time in its
+ * range. A lookup skips the ranges that end before the position or start
+ * after it, so finding the cues shown takes O(log n) plus the cues found,
+ * even when a cue spans the whole file. Seeking needs no extra work.
+ * <p>
+ * Once attached to a MediaPlayer, the engine follows
+ * {@link MediaPlayer#getCurrentPosition()} and calls
+ * {@link OnTimedTextListener#onTimedText(String)} whenever the displayed text
+ * changes, with an empty string when nothing is shown. Overlapping cues are
+ * joined with a new line.
+ * </p>
+ */
+public class SubtitleEngine {
+	private static final long MIN_POLL_DELAY = 20;
+	private static final long MAX_POLL_DELAY = 250;
+
+	private final long[] mStart;
+	private final long[] mEnd;
+	/** Per cue, the latest end of the range it is the middle of. */
+	private final long[] mMaxEnd;
+	private final String[] mText;
+	private final int mCount;
+	private final int[] mActive;
+	private final StringBuilder mBuilder = new StringBuilder();
+
+	private Handler mHandler;
+	private MediaPlayer mPlayer;
+	private OnTimedTextListener mListener;
+	private String mShownText;
+	private long mShownFrom = Long.MAX_VALUE;
+	private long mShownUntil = Long.MIN_VALUE;
+	private long mTimeOffset;
+
+	private SubtitleEngine(SubtitleParser.Cues cues) {
+		mCount = cues.count;
+		mStart = cues.start;
+		mEnd = cues.end;
+		mText = cues.text;
+		mMaxEnd = new long[mCount];
+		buildMaxEnd(0, mCount);
+		mActive = new int[Math.max(1, mCount)];
+	}
+
+	/**
+	 * Parse an external subtitle file. Supported are SubRip (.srt, .txt),
+	 * WebVTT (.webvtt, .vtt), SubStation Alpha (.ssa, .ass) and SAMI (.smi).
+	 *
+	 * @param path
+	 *            the local subtitle file
+	 * @param encoding
+	 *            the charset of the file, or null to detect it
+	 * @throws IOException
+	 *             if the file can't be read or the format is not supported
+	 */
+	public static SubtitleEngine open(String path, String encoding) throws IOException {
+		File file = new File(path);
+		long start = SystemClock.elapsedRealtime();
+		SubtitleParser.Cues cues = SubtitleParser.parse(file, encoding);
+		long time = SystemClock.elapsedRealtime() - start;
+		Log.d("SubtitleEngine: %d cues, %d bytes parsed in %dms", cues.count, file.length(), time);
+		return new SubtitleEngine(cues);
+	}
+
+	public int getCueCount() {
+		return mCount;
+	}
+
+	public long getCueStart(int index) {
+		return mStart[index];
+	}
+
+	public long getCueEnd(int index) {
+		return mEnd[index];
+	}
+
+	public String getCueText(int index) {
+		return mText[index];
+	}
+
+	/**
+	 * Shift all cues, e.g. to fix a subtitle that is out of sync.
+	 *
+	 * @param offset
+	 *            milliseconds added to every cue time, may be negative
+	 */
+	public void setTimeOffset(long offset) {
+		mTimeOffset = offset;
+		mShownFrom = Long.MAX_VALUE;
+		mShownUntil = Long.MIN_VALUE;
+	}
+
+	/**
+	 * @param position
+	 *            the playback position in milliseconds
+	 * @return the text shown at the position, empty if none
+	 */
+	public String getText(long position) {
+		int count = findActive(position - mTimeOffset);
+		return join(count);
+	}
+
+	/**
+	 * Start calling the listener from the current thread's Looper, or the main
+	 * Looper, following the position of the player. Polling stops by itself
+	 * once the player is released.
+	 */
+	public void attach(MediaPlayer mp, OnTimedTextListener listener) {
+		detach();
+		Looper looper = Looper.myLooper();
+		mHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+		mPlayer = mp;
+		mListener = listener;
+		mShownText = null;
+		mShownFrom = Long.MAX_VALUE;
+		mShownUntil = Long.MIN_VALUE;
+		mHandler.post(mTick);
+	}
+
+	public void detach() {
+		if (mHandler != null)
+			mHandler.removeCallbacks(mTick);
+		mHandler = null;
+		mPlayer = null;
+		mListener = null;
+	}
+
+	private final Runnable mTick = new Runnable() {
+		@Override
+		public void run() {
+			MediaPlayer mp = mPlayer;
+			Handler handler = mHandler;
+			if (mp == null)
+				return;
+			if (mp.isReleased()) {
+				detach();
+				return;
+			}
+			long position = mp.getCurrentPosition();
+			if (position < mShownFrom || position >= mShownUntil)
+				update(position);
+			// The listener may have detached, or attached again with a tick
+			// of its own
+			if (mHandler != handler || mPlayer != mp)
+				return;
+			long delay = mShownUntil - position;
+			if (delay < MIN_POLL_DELAY)
+				delay = MIN_POLL_DELAY;
+			else if (delay > MAX_POLL_DELAY)
+				delay = MAX_POLL_DELAY;
+			handler.postDelayed(this, delay);
+		}
+	};
+
+	private void update(long position) {
+		long time = position - mTimeOffset;
+		int count = findActive(time);
+
+		// The text stays the same until the next cue starts or an active one
+		// ends.
+		long until = Long.MAX_VALUE;
+		int next = upperBound(time);
+		if (next < mCount)
+			until = mStart[next];
+		for (int i = 0; i < count; i++)
+			until = Math.min(until, mEnd[mActive[i]]);
+		mShownFrom = position;
+		mShownUntil = until == Long.MAX_VALUE ? Long.MAX_VALUE : until + mTimeOffset;
+
+		String text = join(count);
+		if (!text.equals(mShownText)) {
+			mShownText = text;
+			if (mListener != null)
+				mListener.onTimedText(text);
+		}
+	}
+
+	/**
+	 * Fill {@link #mActive} with the cues covering the time, in start order.
+	 *
+	 * @return the number of active cues
+	 */
+	private int findActive(long time) {
+		return findActive(0, mCount, upperBound(time), time, 0);
+	}
+
+	/**
+	 * Add the active cues of the range [from, to) to {@link #mActive}, in
+	 * order. Cues from started on start after the time.
+	 *
+	 * @return count plus the cues added
+	 */
+	private int findActive(int from, int to, int started, long time, int count) {
+		if (from >= to || from >= started)
+			return count;
+		int mid = (from + to) >>> 1;
+		if (mMaxEnd[mid] <= time)
+			return count;
+		count = findActive(from, mid, started, time, count);
+		if (mid < started && mEnd[mid] > time)
+			mActive[count++] = mid;
+		return findActive(mid + 1, to, started, time, count);
+	}
+
+	/**
+	 * @return the latest end of the range [from, to), which is also stored at
+	 *         its middle
+	 */
+	private long buildMaxEnd(int from, int to) {
+		if (from >= to)
+			return Long.MIN_VALUE;
+		int mid = (from + to) >>> 1;
+		long max = Math.max(mEnd[mid], Math.max(buildMaxEnd(from, mid), buildMaxEnd(mid + 1, to)));
+		mMaxEnd[mid] = max;
+		return max;
+	}
+
+	/**
+	 * @return the index of the first cue starting after the time
+	 */
+	private int upperBound(long time) {
+		int low = 0;
+		int high = mCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mStart[mid] <= time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private String join(int count) {
+		if (count == 0)
+			return "";
+		if (count == 1)
+			return mText[mActive[0]];
+		mBuilder.setLength(0);
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				mBuilder.append('\n');
+			mBuilder.append(mText[mActive[i]]);
+		}
+		return mBuilder.toString();
+	}
+}
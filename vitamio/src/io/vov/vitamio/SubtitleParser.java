@@ -0,0 +1,545 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import io.vov.vitamio.utils.IOUtils;
+import io.vov.vitamio.utils.Log;
+
+/**
+ * Single pass parser for external text subtitles: SubRip (.srt, .txt),
+ * WebVTT, SubStation Alpha (.ssa, .ass) and SAMI (.smi). The file is memory
+ * mapped and decoded line by line, the charset is detected once up front.
+ */
+final class SubtitleParser {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+	private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+	private static final long SAMI_LAST_CUE_DURATION = 5000;
+
+	/**
+	 * Parsed cues in parallel arrays, sorted by start time.
+	 */
+	static final class Cues {
+		long[] start = new long[256];
+		long[] end = new long[256];
+		String[] text = new String[256];
+		int count;
+
+		void add(long s, long e, String t) {
+			if (e <= s || t.length() == 0)
+				return;
+			if (count == start.length) {
+				int size = count * 2;
+				start = Arrays.copyOf(start, size);
+				end = Arrays.copyOf(end, size);
+				text = Arrays.copyOf(text, size);
+			}
+			start[count] = s;
+			end[count] = e;
+			text[count] = t;
+			count++;
+		}
+
+		void sort() {
+			boolean sorted = true;
+			for (int i = 1; i < count && sorted; i++)
+				sorted = start[i - 1] <= start[i];
+			if (sorted)
+				return;
+
+			// Start times fit in 32 bits and indexes in 31, so one primitive
+			// sort of packed keys keeps equal starts in file order.
+			long[] keys = new long[count];
+			for (int i = 0; i < count; i++)
+				keys[i] = (start[i] << 31) | i;
+			Arrays.sort(keys);
+			long[] s = new long[count];
+			long[] e = new long[count];
+			String[] t = new String[count];
+			for (int i = 0; i < count; i++) {
+				int from = (int) (keys[i] & Integer.MAX_VALUE);
+				s[i] = start[from];
+				e[i] = end[from];
+				t[i] = text[from];
+			}
+			start = s;
+			end = e;
+			text = t;
+		}
+	}
+
+	static Cues parse(File file, String encoding) throws IOException {
+		String name = file.getName().toLowerCase();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			IOUtils.closeSilently(raf);
+		}
+
+		LineReader reader = new LineReader(buffer, detectCharset(buffer, encoding));
+		Cues cues = new Cues();
+		if (name.endsWith(".ssa") || name.endsWith(".ass"))
+			parseSsa(reader, cues);
+		else if (name.endsWith(".smi"))
+			parseSami(reader, cues);
+		else if (name.endsWith(".srt") || name.endsWith(".webvtt") || name.endsWith(".vtt") || name.endsWith(".txt"))
+			parseSrt(reader, cues);
+		else
+			throw new IOException("Unsupported subtitle format: " + name);
+		cues.sort();
+		return cues;
+	}
+
+	/**
+	 * Use the byte order mark if there is one, then the given encoding, then
+	 * UTF-8 if the whole file is valid UTF-8, then the platform default. Skips
+	 * the byte order mark.
+	 */
+	static Charset detectCharset(ByteBuffer b, String encoding) {
+		int n = b.remaining();
+		int p = b.position();
+		if (n >= 3 && (b.get(p) & 0xff) == 0xef && (b.get(p + 1) & 0xff) == 0xbb && (b.get(p + 2) & 0xff) == 0xbf) {
+			b.position(p + 3);
+			return UTF_8;
+		}
+		if (n >= 2 && (b.get(p) & 0xff) == 0xff && (b.get(p + 1) & 0xff) == 0xfe) {
+			b.position(p + 2);
+			return UTF_16LE;
+		}
+		if (n >= 2 && (b.get(p) & 0xff) == 0xfe && (b.get(p + 1) & 0xff) == 0xff) {
+			b.position(p + 2);
+			return UTF_16BE;
+		}
+		if (encoding != null) {
+			try {
+				return Charset.forName(encoding.trim());
+			} catch (Exception e) {
+				Log.e("detectCharset %s", encoding);
+			}
+		}
+		return isUtf8(b) ? UTF_8 : Charset.defaultCharset();
+	}
+
+	private static boolean isUtf8(ByteBuffer b) {
+		int i = b.position();
+		int n = b.limit();
+		while (i < n) {
+			int c = b.get(i++) & 0xff;
+			if (c < 0x80)
+				continue;
+			int extra;
+			if (c >= 0xc2 && c <= 0xdf)
+				extra = 1;
+			else if (c >= 0xe0 && c <= 0xef)
+				extra = 2;
+			else if (c >= 0xf0 && c <= 0xf4)
+				extra = 3;
+			else
+				return false;
+			if (i + extra > n)
+				return false;
+			while (extra-- > 0) {
+				if ((b.get(i++) & 0xc0) != 0x80)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * SubRip and WebVTT: a "start --> end" line followed by text lines up to
+	 * the next blank line. Everything else (indexes, headers, notes) is
+	 * skipped.
+	 */
+	private static void parseSrt(LineReader reader, Cues cues) {
+		StringBuilder text = new StringBuilder();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			int arrow = line.indexOf("-->");
+			if (arrow < 0)
+				continue;
+			int endBegin = arrow + 3;
+			while (endBegin < line.length() && line.charAt(endBegin) == ' ')
+				endBegin++;
+			int endEnd = line.indexOf(' ', endBegin);
+			if (endEnd < 0)
+				endEnd = line.length();
+			long start = parseTime(line, 0, arrow);
+			long end = parseTime(line, endBegin, endEnd);
+
+			text.setLength(0);
+			while ((line = reader.readLine()) != null && !isBlank(line)) {
+				if (text.length() > 0)
+					text.append('\n');
+				text.append(line);
+			}
+			if (start >= 0 && end >= 0)
+				cues.add(start, end, text.toString());
+			if (line == null)
+				break;
+		}
+	}
+
+	/**
+	 * SubStation Alpha: "Dialogue:" lines of the [Events] section, with the
+	 * field order given by its "Format:" line. Override blocks are removed.
+	 */
+	private static void parseSsa(LineReader reader, Cues cues) {
+		boolean events = false;
+		int startField = 1;
+		int endField = 2;
+		int textField = 9;
+		StringBuilder text = new StringBuilder();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith("[")) {
+				events = line.trim().equalsIgnoreCase("[Events]");
+			} else if (!events) {
+				continue;
+			} else if (line.regionMatches(true, 0, "Format:", 0, 7)) {
+				int field = 0;
+				int begin = 7;
+				while (begin <= line.length()) {
+					int comma = line.indexOf(',', begin);
+					if (comma < 0)
+						comma = line.length();
+					String name = line.substring(begin, comma).trim();
+					if (name.equalsIgnoreCase("Start"))
+						startField = field;
+					else if (name.equalsIgnoreCase("End"))
+						endField = field;
+					else if (name.equalsIgnoreCase("Text"))
+						textField = field;
+					field++;
+					begin = comma + 1;
+				}
+			} else if (line.regionMatches(true, 0, "Dialogue:", 0, 9)) {
+				long start = -1;
+				long end = -1;
+				int field = 0;
+				int begin = 9;
+				while (field < textField) {
+					int comma = line.indexOf(',', begin);
+					if (comma < 0)
+						break;
+					if (field == startField)
+						start = parseTime(line, begin, comma);
+					else if (field == endField)
+						end = parseTime(line, begin, comma);
+					field++;
+					begin = comma + 1;
+				}
+				if (field == textField && start >= 0 && end >= 0) {
+					text.setLength(0);
+					appendSsaText(text, line, begin);
+					cues.add(start, end, text.toString());
+				}
+			}
+		}
+	}
+
+	private static void appendSsaText(StringBuilder text, String line, int begin) {
+		int length = line.length();
+		for (int i = begin; i < length; i++) {
+			char c = line.charAt(i);
+			if (c == '{') {
+				int close = line.indexOf('}', i);
+				if (close > 0) {
+					i = close;
+					continue;
+				}
+			} else if (c == '\\' && i + 1 < length) {
+				char next = line.charAt(i + 1);
+				if (next == 'N' || next == 'n') {
+					text.append('\n');
+					i++;
+					continue;
+				} else if (next == 'h') {
+					text.append(' ');
+					i++;
+					continue;
+				}
+			}
+			text.append(c);
+		}
+	}
+
+	/**
+	 * SAMI: each &lt;SYNC Start=ms&gt; block is shown until the next one. Blocks
+	 * with no visible text only clear the screen. Only the block being read is
+	 * buffered, from its SYNC tag to the next one or to &lt;/BODY&gt;.
+	 */
+	private static void parseSami(LineReader reader, Cues cues) {
+		StringBuilder block = new StringBuilder();
+		StringBuilder text = new StringBuilder();
+		long start = -1;
+		String pending = null;
+		boolean eof = false;
+		while (!eof) {
+			String line = reader.readLine();
+			if (line != null)
+				block.append(line).append('\n');
+			else
+				eof = true;
+
+			for (;;) {
+				int i = indexOfIgnoreCase(block, "<sync", 0);
+				if (i < 0) {
+					block.setLength(0);
+					break;
+				}
+				block.delete(0, i);
+				int close = indexOf(block, '>', 0, block.length());
+				if (close < 0)
+					break;
+				int next = indexOfIgnoreCase(block, "<sync", close);
+				int blockEnd = next >= 0 ? next : block.length();
+				int body = indexOfIgnoreCase(block, "</body", close);
+				if (body >= 0 && body < blockEnd)
+					blockEnd = body;
+				else if (next < 0 && !eof)
+					break; // The block may go on in the next lines
+
+				long time = parseSyncStart(block, 0, close);
+				if (time >= 0) {
+					if (pending != null)
+						cues.add(start, time, pending);
+					text.setLength(0);
+					appendSamiText(text, block, close + 1, blockEnd);
+					pending = text.length() > 0 ? text.toString() : null;
+					start = time;
+				}
+				block.delete(0, next >= 0 ? next : blockEnd);
+			}
+		}
+		if (pending != null)
+			cues.add(start, start + SAMI_LAST_CUE_DURATION, pending);
+	}
+
+	private static long parseSyncStart(CharSequence doc, int from, int to) {
+		int i = indexOfIgnoreCase(doc, "start", from);
+		if (i < 0 || i > to)
+			return -1;
+		i += 5;
+		while (i < to && (doc.charAt(i) < '0' || doc.charAt(i) > '9'))
+			i++;
+		if (i == to)
+			return -1;
+		long value = 0;
+		while (i < to && doc.charAt(i) >= '0' && doc.charAt(i) <= '9')
+			value = value * 10 + (doc.charAt(i++) - '0');
+		return value;
+	}
+
+	private static void appendSamiText(StringBuilder text, CharSequence doc, int begin, int end) {
+		boolean space = false;
+		for (int i = begin; i < end; i++) {
+			char c = doc.charAt(i);
+			if (c == '<') {
+				int close = indexOf(doc, '>', i, end);
+				if (close < 0)
+					break;
+				if (regionMatchesIgnoreCase(doc, i + 1, "br"))
+					appendBreak(text);
+				i = close;
+				space = false;
+				continue;
+			}
+			if (c == '&') {
+				int semi = indexOf(doc, ';', i, Math.min(end, i + 8));
+				if (semi > 0) {
+					if (regionMatchesIgnoreCase(doc, i + 1, "nbsp;"))
+						c = ' ';
+					else if (regionMatchesIgnoreCase(doc, i + 1, "amp;"))
+						c = '&';
+					else if (regionMatchesIgnoreCase(doc, i + 1, "lt;"))
+						c = '<';
+					else if (regionMatchesIgnoreCase(doc, i + 1, "gt;"))
+						c = '>';
+					else if (regionMatchesIgnoreCase(doc, i + 1, "quot;"))
+						c = '"';
+					i = semi;
+				}
+			}
+			if (Character.isWhitespace(c)) {
+				space = text.length() > 0 && text.charAt(text.length() - 1) != '\n';
+				continue;
+			}
+			if (space)
+				text.append(' ');
+			space = false;
+			text.append(c);
+		}
+		while (text.length() > 0 && text.charAt(text.length() - 1) == '\n')
+			text.setLength(text.length() - 1);
+	}
+
+	private static void appendBreak(StringBuilder text) {
+		if (text.length() > 0)
+			text.append('\n');
+	}
+
+	private static int indexOf(CharSequence s, char c, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (s.charAt(i) == c)
+				return i;
+		}
+		return -1;
+	}
+
+	private static int indexOfIgnoreCase(CharSequence s, String needle, int from) {
+		int last = s.length() - needle.length();
+		for (int i = from; i <= last; i++) {
+			if (regionMatchesIgnoreCase(s, i, needle))
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean regionMatchesIgnoreCase(CharSequence s, int offset, String lowerCase) {
+		int length = lowerCase.length();
+		if (offset + length > s.length())
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (Character.toLowerCase(s.charAt(offset + i)) != lowerCase.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isBlank(String line) {
+		for (int i = 0; i < line.length(); i++) {
+			if (!Character.isWhitespace(line.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parse [[hours:]minutes:]seconds[.fraction] where the fraction separator
+	 * may be '.' or ','.
+	 *
+	 * @return the time in milliseconds, or -1 if malformed
+	 */
+	static long parseTime(String s, int begin, int end) {
+		while (begin < end && s.charAt(begin) == ' ')
+			begin++;
+		while (end > begin && s.charAt(end - 1) == ' ')
+			end--;
+
+		long seconds = 0;
+		long value = 0;
+		boolean digits = false;
+		int i = begin;
+		for (; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				digits = true;
+			} else if (c == ':') {
+				if (!digits)
+					return -1;
+				seconds = seconds * 60 + value;
+				value = 0;
+				digits = false;
+			} else if (c == '.' || c == ',') {
+				break;
+			} else {
+				return -1;
+			}
+		}
+		if (!digits)
+			return -1;
+
+		long ms = (seconds * 60 + value) * 1000;
+		int scale = 100;
+		for (i++; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			ms += (c - '0') * scale;
+			scale /= 10;
+		}
+		return ms;
+	}
+
+	/**
+	 * Decodes a byte buffer in fixed size chunks and splits it into lines, so
+	 * the file is never held as one String.
+	 */
+	private static final class LineReader {
+		private final ByteBuffer mIn;
+		private final CharsetDecoder mDecoder;
+		private final CharBuffer mChars = CharBuffer.allocate(8192);
+		private final StringBuilder mLine = new StringBuilder(256);
+		private boolean mEof;
+
+		LineReader(ByteBuffer in, Charset charset) {
+			mIn = in;
+			mDecoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			mChars.flip();
+		}
+
+		/**
+		 * @return the next line without its terminator, or null at the end
+		 */
+		String readLine() {
+			mLine.setLength(0);
+			for (;;) {
+				while (mChars.hasRemaining()) {
+					char c = mChars.get();
+					if (c == '\n')
+						return line();
+					mLine.append(c);
+				}
+				if (mEof)
+					return mLine.length() > 0 ? line() : null;
+				fill();
+			}
+		}
+
+		private String line() {
+			int length = mLine.length();
+			if (length > 0 && mLine.charAt(length - 1) == '\r')
+				mLine.setLength(length - 1);
+			return mLine.toString();
+		}
+
+		private void fill() {
+			mChars.clear();
+			mDecoder.decode(mIn, mChars, true);
+			if (!mIn.hasRemaining() && mDecoder.flush(mChars).isUnderflow())
+				mEof = true;
+			mChars.flip();
+		}
+	}
+}
@@ -60,6 +60,13 @@ public class ThumbnailUtils {
 			}
 		}
 
+		return scaleVideoThumbnail(bitmap, kind);
+	}
+
+	/**
+	 * Scale a frame to the size of a thumbnail kind, recycling the frame.
+	 */
+	static Bitmap scaleVideoThumbnail(Bitmap bitmap, int kind) {
 		if (bitmap != null) {
 			if (kind == Video.Thumbnails.MICRO_KIND)
 				bitmap = extractThumbnail(bitmap, TARGET_SIZE_MICRO_THUMBNAIL_WIDTH,
@@ -26,12 +26,22 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.provider.BaseColumns;
 
 import io.vov.vitamio.utils.Log;
+import io.vov.vitamio.utils.SettableFuture;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class MediaStore {
 	public static final String AUTHORITY = "me.abitno.vplayer.mediaprovider";
@@ -176,12 +186,27 @@ public final class MediaStore {
 				InternalThumbnails.cancelThumbnailRequest(cr, origId, CONTENT_URI, InternalThumbnails.DEFAULT_GROUP_ID);
 			}
 
+			/**
+			 * Get the thumbnail of a video, made by the provider if there is
+			 * none yet.
+			 * <p>
+			 * Once the application enables {@link ThumbnailCache} with
+			 * {@link ThumbnailCache#setMaxSize(int)}, a bitmap returned for
+			 * null options is shared with other callers of this method: it
+			 * must not be recycled, modified or used as
+			 * {@link BitmapFactory.Options#inBitmap}. Bitmaps decoded with
+			 * options of the caller are never shared.
+			 * </p>
+			 */
 			public static Bitmap getThumbnail(Context ctx, ContentResolver cr, long origId, int kind,
 					BitmapFactory.Options options) {
 				return InternalThumbnails.getThumbnail(ctx, cr, origId, InternalThumbnails.DEFAULT_GROUP_ID, kind,
 						options, CONTENT_URI);
 			}
 
+			/**
+			 * @see #getThumbnail(Context, ContentResolver, long, int, BitmapFactory.Options)
+			 */
 			public static Bitmap getThumbnail(Context ctx, ContentResolver cr, long origId, long groupId, int kind,
 					BitmapFactory.Options options) {
 				return InternalThumbnails.getThumbnail(ctx, cr, origId, groupId, kind, options, CONTENT_URI);
@@ -194,6 +219,50 @@ public final class MediaStore {
 			public static void cancelThumbnailRequest(ContentResolver cr, long origId, long groupId) {
 				InternalThumbnails.cancelThumbnailRequest(cr, origId, CONTENT_URI, groupId);
 			}
+
+			/**
+			 * Receives the thumbnails of
+			 * {@link Thumbnails#getThumbnails(Context, ContentResolver, long[], int, BitmapFactory.Options, OnThumbnailListener)}
+			 * .
+			 */
+			public interface OnThumbnailListener {
+				/**
+				 * Called on a worker thread as soon as the thumbnail is decoded.
+				 *
+				 * @param bitmap
+				 *            null if the video has no thumbnail and none could be
+				 *            made; shared like the result of getThumbnail
+				 */
+				void onThumbnail(long origId, Bitmap bitmap);
+			}
+
+			/**
+			 * Get the thumbnails of many videos at once, e.g. the cells of a
+			 * grid. The thumbnail rows are looked up with one query, micro
+			 * thumbnails are read in the order they are stored in, and decoding
+			 * runs on a few background threads. Thumbnails that don't exist yet
+			 * are made as {@link #getThumbnail(Context, ContentResolver, long, int, BitmapFactory.Options)}
+			 * makes them.
+			 * <p>
+			 * With null options the thumbnails are decoded in parallel. Options
+			 * of the caller are used by one thumbnail at a time, from decoding
+			 * until the listener returns, as BitmapFactory writes their out
+			 * fields. If they set {@link BitmapFactory.Options#inBitmap}, every
+			 * thumbnail is decoded into that bitmap, so the listener must be
+			 * done with it before returning.
+			 * </p>
+			 *
+			 * @param options
+			 *            null for shared, cacheable bitmaps, or the options
+			 *            every thumbnail is decoded with
+			 * @return done once the listener has been called for every id;
+			 *         cancel it to skip the thumbnails not decoded yet
+			 */
+			public static Future<Void> getThumbnails(Context ctx, ContentResolver cr, long[] origIds, int kind,
+					BitmapFactory.Options options, OnThumbnailListener listener) {
+				return InternalThumbnails.getThumbnails(ctx, cr, origIds, InternalThumbnails.DEFAULT_GROUP_ID, kind,
+						options, CONTENT_URI, listener);
+			}
 		}
 	}
 
@@ -202,15 +271,59 @@ public final class MediaStore {
 		private static final int MINI_KIND = 1;
 		private static final int MICRO_KIND = 3;
 		private static final String[] PROJECTION = new String[] { _ID, MediaColumns.DATA };
-		private static final Object sThumbBufLock = new Object();
-		private static byte[] sThumbBuf;
+		private static final String[] BATCH_PROJECTION = new String[] { _ID, Video.Thumbnails.VIDEO_ID };
+		/** Thumbnails read and decoded by one task of a batch. */
+		private static final int BATCH_CHUNK_SIZE = 8;
+		/** Ids per query of a batch. */
+		private static final int BATCH_QUERY_SIZE = 500;
+		private static Executor sBatchExecutor;
+		/** Per thread, so micro thumbnails are read and decoded in parallel. */
+		private static final ThreadLocal<MicroDecoder> sMicroDecoder = new ThreadLocal<MicroDecoder>() {
+			@Override
+			protected MicroDecoder initialValue() {
+				return new MicroDecoder();
+			}
+		};
+
+		private static final class MicroDecoder {
+			final byte[] buffer = new byte[MiniThumbFile.BYTES_PER_MINTHUMB];
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+
+			MicroDecoder() {
+				options.inTempStorage = new byte[16 * 1024];
+			}
+		}
+
+		/**
+		 * Decode the stored bytes of a micro thumbnail, not the whole buffer.
+		 *
+		 * @param options
+		 *            null for the defaults; options of the caller may set
+		 *            inBitmap to one of its own bitmaps, never to a bitmap
+		 *            returned for null options, which may be cached
+		 */
+		private static Bitmap decodeMicroThumb(MiniThumbFile thumbFile, long origId, BitmapFactory.Options options) {
+			MicroDecoder decoder = sMicroDecoder.get();
+			int length = thumbFile.readMiniThumb(origId, decoder.buffer);
+			if (length < 0)
+				return null;
+			Bitmap bitmap = BitmapFactory.decodeByteArray(decoder.buffer, 0, length, options != null ? options
+					: decoder.options);
+			if (bitmap == null)
+				Log.d("couldn't decode byte array.");
+			return bitmap;
+		}
 
 		private static Bitmap getMiniThumbFromFile(Cursor c, Uri baseUri, ContentResolver cr,
 				BitmapFactory.Options options) {
+			return getMiniThumbFromFile(c.getLong(0), baseUri, cr, options);
+		}
+
+		private static Bitmap getMiniThumbFromFile(long thumbId, Uri baseUri, ContentResolver cr,
+				BitmapFactory.Options options) {
 			Bitmap bitmap = null;
 			Uri thumbUri = null;
 			try {
-				long thumbId = c.getLong(0);
 				thumbUri = ContentUris.withAppendedId(baseUri, thumbId);
 				ParcelFileDescriptor pfdInput = cr.openFileDescriptor(thumbUri, "r");
 				bitmap = BitmapFactory.decodeFileDescriptor(pfdInput.getFileDescriptor(), null, options);
@@ -254,22 +367,42 @@ public final class MediaStore {
 			return path;
 		}
 
+		/**
+		 * Bitmaps decoded with other options than the defaults are not cached,
+		 * they may be of any size or reuse the caller's bitmap.
+		 */
+		private static boolean isCacheable(BitmapFactory.Options options) {
+			return options == null;
+		}
+
 		static Bitmap getThumbnail(Context ctx, ContentResolver cr, long origId, long groupId, int kind,
 				BitmapFactory.Options options, Uri baseUri) {
+			if (!isCacheable(options))
+				return readThumbnail(ctx, cr, origId, groupId, kind, options, baseUri);
+			ThumbnailCache cache = ThumbnailCache.getInstance();
+			cache.register(ctx);
+			MiniThumbFile thumbFile = MiniThumbFile.instance(baseUri);
+			Bitmap bitmap = cache.get(origId, kind, thumbFile.getMagic(origId));
+			if (bitmap != null)
+				return bitmap;
+			bitmap = readThumbnail(ctx, cr, origId, groupId, kind, options, baseUri);
+			if (bitmap != null) {
+				// Read again, the thumbnail may just have been made
+				long magic = thumbFile.getMagic(origId);
+				if (magic != 0)
+					cache.put(origId, kind, magic, bitmap);
+			}
+			return bitmap;
+		}
+
+		private static Bitmap readThumbnail(Context ctx, ContentResolver cr, long origId, long groupId, int kind,
+				BitmapFactory.Options options, Uri baseUri) {
 			Bitmap bitmap = null;
 			MiniThumbFile thumbFile = MiniThumbFile.instance(baseUri);
 			long magic = thumbFile.getMagic(origId);
 			if (magic != 0) {
 				if (kind == MICRO_KIND) {
-					synchronized (sThumbBufLock) {
-						if (sThumbBuf == null)
-							sThumbBuf = new byte[MiniThumbFile.BYTES_PER_MINTHUMB];
-						if (thumbFile.getMiniThumbFromFile(origId, sThumbBuf) != null) {
-							bitmap = BitmapFactory.decodeByteArray(sThumbBuf, 0, sThumbBuf.length);
-							if (bitmap == null)
-								Log.d("couldn't decode byte array.");
-						}
-					}
+					bitmap = decodeMicroThumb(thumbFile, origId, options);
 					return bitmap;
 				} else if (kind == MINI_KIND) {
 					String column = "video_id=";
@@ -298,15 +431,7 @@ public final class MediaStore {
 					return null;
 
 				if (kind == MICRO_KIND) {
-					synchronized (sThumbBufLock) {
-						if (sThumbBuf == null)
-							sThumbBuf = new byte[MiniThumbFile.BYTES_PER_MINTHUMB];
-						if (thumbFile.getMiniThumbFromFile(origId, sThumbBuf) != null) {
-							bitmap = BitmapFactory.decodeByteArray(sThumbBuf, 0, sThumbBuf.length);
-							if (bitmap == null)
-								Log.d("couldn't decode byte array.");
-						}
-					}
+					bitmap = decodeMicroThumb(thumbFile, origId, options);
 				} else if (kind == MINI_KIND) {
 					if (c.moveToFirst())
 						bitmap = getMiniThumbFromFile(c, baseUri, cr, options);
@@ -321,6 +446,208 @@ public final class MediaStore {
 			}
 			return bitmap;
 		}
+
+		private static synchronized Executor batchExecutor() {
+			if (sBatchExecutor == null) {
+				int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+				sBatchExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+					private final AtomicInteger mCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						Thread thread = new Thread(new Runnable() {
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						}, "Thumbnails #" + mCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			return sBatchExecutor;
+		}
+
+		static Future<Void> getThumbnails(Context ctx, ContentResolver cr, long[] origIds, long groupId, int kind,
+				BitmapFactory.Options options, Uri baseUri, Video.Thumbnails.OnThumbnailListener listener) {
+			if (kind != MICRO_KIND && kind != MINI_KIND)
+				throw new IllegalArgumentException("Unsupported kind: " + kind);
+			ThumbnailCache.getInstance().register(ctx);
+			ThumbnailBatch batch = new ThumbnailBatch(ctx, cr, origIds.clone(), groupId, kind, options, baseUri,
+					listener);
+			batchExecutor().execute(batch.mResolve);
+			return batch;
+		}
+
+		/**
+		 * One getThumbnails call: a task resolving where the thumbnails are,
+		 * then tasks reading and decoding a few of them each.
+		 */
+		private static final class ThumbnailBatch extends SettableFuture<Void> {
+			private final Context mContext;
+			private final ContentResolver mResolver;
+			private final long[] mOrigIds;
+			private final long mGroupId;
+			private final int mKind;
+			private final BitmapFactory.Options mOptions;
+			private final Uri mBaseUri;
+			private final Video.Thumbnails.OnThumbnailListener mListener;
+			private final AtomicInteger mRemaining;
+			/** Per id: the micro thumbnail's offset or the mini thumbnail's row, -1 if none. */
+			private final long[] mLocations;
+
+			ThumbnailBatch(Context ctx, ContentResolver cr, long[] origIds, long groupId, int kind,
+					BitmapFactory.Options options, Uri baseUri, Video.Thumbnails.OnThumbnailListener listener) {
+				mContext = ctx;
+				mResolver = cr;
+				mOrigIds = origIds;
+				mGroupId = groupId;
+				mKind = kind;
+				mOptions = options;
+				mBaseUri = baseUri;
+				mListener = listener;
+				mRemaining = new AtomicInteger(origIds.length);
+				mLocations = new long[origIds.length];
+			}
+
+			private final Runnable mResolve = new Runnable() {
+				@Override
+				public void run() {
+					if (isCancelled())
+						return;
+					if (mOrigIds.length == 0) {
+						set(null);
+						return;
+					}
+					Arrays.fill(mLocations, -1);
+					try {
+						if (mKind == MICRO_KIND) {
+							MiniThumbFile thumbFile = MiniThumbFile.instance(mBaseUri);
+							for (int i = 0; i < mOrigIds.length; i++)
+								mLocations[i] = thumbFile.getOffset(mOrigIds[i]);
+						} else {
+							queryMiniThumbIds();
+						}
+					} catch (RuntimeException ex) {
+						Log.e("getThumbnails", ex);
+					}
+
+					// Stored thumbnails in file order, then the ones to make
+					Integer[] order = new Integer[mOrigIds.length];
+					for (int i = 0; i < order.length; i++)
+						order[i] = i;
+					Arrays.sort(order, new Comparator<Integer>() {
+						@Override
+						public int compare(Integer lhs, Integer rhs) {
+							long l = mLocations[lhs];
+							long r = mLocations[rhs];
+							if (l < 0 || r < 0)
+								return l < 0 ? (r < 0 ? 0 : 1) : -1;
+							return l < r ? -1 : (l == r ? 0 : 1);
+						}
+					});
+
+					Executor executor = batchExecutor();
+					for (int start = 0; start < order.length; start += BATCH_CHUNK_SIZE) {
+						int end = Math.min(order.length, start + BATCH_CHUNK_SIZE);
+						int[] chunk = new int[end - start];
+						for (int i = start; i < end; i++)
+							chunk[i - start] = order[i];
+						executor.execute(new Chunk(chunk));
+					}
+				}
+			};
+
+			private void queryMiniThumbIds() {
+				HashMap<Long, Integer> positions = new HashMap<Long, Integer>(mOrigIds.length * 2);
+				for (int i = 0; i < mOrigIds.length; i++)
+					positions.put(mOrigIds[i], i);
+				StringBuilder where = new StringBuilder();
+				for (int start = 0; start < mOrigIds.length; start += BATCH_QUERY_SIZE) {
+					int end = Math.min(mOrigIds.length, start + BATCH_QUERY_SIZE);
+					where.setLength(0);
+					where.append(Video.Thumbnails.VIDEO_ID).append(" IN (");
+					for (int i = start; i < end; i++) {
+						if (i > start)
+							where.append(',');
+						where.append(mOrigIds[i]);
+					}
+					where.append(')');
+					Cursor c = null;
+					try {
+						c = mResolver.query(mBaseUri, BATCH_PROJECTION, where.toString(), null, null);
+						while (c != null && c.moveToNext()) {
+							Integer position = positions.get(c.getLong(1));
+							if (position != null)
+								mLocations[position] = c.getLong(0);
+						}
+					} finally {
+						if (c != null)
+							c.close();
+					}
+				}
+			}
+
+			private final class Chunk implements Runnable {
+				private final int[] mPositions;
+
+				Chunk(int[] positions) {
+					mPositions = positions;
+				}
+
+				@Override
+				public void run() {
+					MiniThumbFile thumbFile = MiniThumbFile.instance(mBaseUri);
+					for (int position : mPositions) {
+						if (isCancelled())
+							return;
+						try {
+							if (mOptions == null) {
+								deliver(thumbFile, position);
+							} else {
+								// BitmapFactory writes into the options, and
+								// may decode into their inBitmap
+								synchronized (mOptions) {
+									deliver(thumbFile, position);
+								}
+							}
+						} catch (RuntimeException ex) {
+							Log.e("getThumbnails", ex);
+						} finally {
+							if (mRemaining.decrementAndGet() == 0)
+								set(null);
+						}
+					}
+				}
+
+				private void deliver(MiniThumbFile thumbFile, int position) {
+					ThumbnailCache cache = ThumbnailCache.getInstance();
+					long origId = mOrigIds[position];
+					long location = mLocations[position];
+					Bitmap bitmap = null;
+					long magic = 0;
+					if (location >= 0 && isCacheable(mOptions)) {
+						magic = thumbFile.getMagic(origId);
+						bitmap = cache.get(origId, mKind, magic);
+					}
+					if (bitmap != null) {
+						// Cached
+					} else if (location < 0) {
+						bitmap = getThumbnail(mContext, mResolver, origId, mGroupId, mKind, mOptions, mBaseUri);
+					} else {
+						if (mKind == MICRO_KIND)
+							bitmap = decodeMicroThumb(thumbFile, origId, mOptions);
+						else
+							bitmap = getMiniThumbFromFile(location, mBaseUri, mResolver, mOptions);
+						if (bitmap != null && magic != 0)
+							cache.put(origId, mKind, magic, bitmap);
+					}
+					mListener.onThumbnail(origId, bitmap);
+				}
+			}
+		}
 	}
 
 }
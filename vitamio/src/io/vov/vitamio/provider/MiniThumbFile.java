@@ -21,29 +21,109 @@ import android.net.Uri;
 import android.os.Environment;
 
 import io.vov.vitamio.provider.MediaStore.Video;
+import io.vov.vitamio.utils.IOUtils;
 import io.vov.vitamio.utils.Log;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.channels.NonWritableChannelException;
 import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * Micro thumbnails of one media table, stored in two files.
+ * <p>
+ * The data file is an append-only sequence of records, each holding the row
+ * id, the magic, the length and the compressed thumbnail, and is read through
+ * a memory mapping. The index file is an append-only log of (id, offset,
+ * magic, length) entries, the last entry of an id winning, and is loaded into
+ * an in-memory hash table. Looking up the magic needs no I/O, reading a
+ * thumbnail is a bounds check and a copy out of the mapping, or a positional
+ * read into a per-thread buffer for records appended since it was mapped.
+ * Readers take no lock, neither of this object nor of the files, so any
+ * number of threads read at once. Saving is serialized on this object and
+ * appends to both files under an exclusive lock on the index, so several
+ * processes can share them. A thread interrupted during I/O closes the shared
+ * channels for all threads; the files are then opened again by the next call.
+ * </p>
+ * <p>
+ * Space left by replaced thumbnails is reclaimed when the files are opened
+ * and it exceeds the live data: the live records are copied to a data file of
+ * the next generation, whose number is part of its name, and a new index
+ * naming that generation is renamed over the old one. That single rename
+ * commits the compaction. The old index is marked retired first, so the
+ * processes still holding it see its generation change once they get its lock
+ * or miss an id, and reopen the files.
+ * </p>
+ * <p>
+ * The fixed slot file of version 7 is migrated into empty files, and deleted.
+ * </p>
+ */
 public class MiniThumbFile {
 	protected static final int BYTES_PER_MINTHUMB = 10000;
-	private static final int MINI_THUMB_DATA_FILE_VERSION = 7;
+	private static final int MINI_THUMB_DATA_FILE_VERSION = 8;
 	private static final int HEADER_SIZE = 1 + 8 + 4;
+	private static final int DATA_MAGIC = 0x56544844;
+	private static final int INDEX_MAGIC = 0x56544849;
+	/** magic, version, generation, unused */
+	private static final int FILE_HEADER_SIZE = 4 + 4 + 4 + 4;
+	private static final int GENERATION_OFFSET = 4 + 4;
+	/**
+	 * Returned for a missing or invalid header. A retired index holds the
+	 * complement of its generation, which is negative too.
+	 */
+	private static final int BAD_HEADER = Integer.MIN_VALUE;
+	/** id, magic, length */
+	private static final int RECORD_HEADER_SIZE = 8 + 8 + 4;
+	/** id, offset, magic, length */
+	private static final int INDEX_ENTRY_SIZE = 8 + 8 + 8 + 4;
+	private static final long COMPACT_MIN_DEAD_BYTES = 1024 * 1024;
+	/** Records appended after the mapping are read without remapping up to this. */
+	private static final long REMAP_MIN_BYTES = 256 * 1024;
+	/** Times the files are reopened in a row when other processes replace them. */
+	private static final int MAX_REOPENS = 3;
+	/**
+	 * Time a failed open is not tried again, so that every read doesn't hit
+	 * the file system while the storage is unmounted or not readable.
+	 */
+	private static final long OPEN_RETRY_NANOS = 2000000000L;
+	private static final ThreadLocal<ByteBuffer> sReadBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(RECORD_HEADER_SIZE + BYTES_PER_MINTHUMB);
+		}
+	};
 	private static Hashtable<String, MiniThumbFile> sThumbFiles = new Hashtable<String, MiniThumbFile>();
 	private Uri mUri;
-	private RandomAccessFile mMiniThumbFile;
-	private FileChannel mChannel;
-	private ByteBuffer mBuffer;
+	private RandomAccessFile mDataFile;
+	private volatile FileChannel mDataChannel;
+	private RandomAccessFile mIndexFile;
+	private volatile FileChannel mIndexChannel;
+	/** The generation of the open files. */
+	private volatile int mGeneration;
+	/** When open() failed, 0 if it did not. */
+	private long mOpenFailedAt;
+	private volatile MappedByteBuffer mMap;
+	/** Bytes of the index file loaded into the table. */
+	private volatile long mIndexLoaded;
+	private long mLiveBytes;
+	private long mDeadBytes;
+	/** The table being loaded and appended to, guarded by this. */
+	private Table mWriteTable;
+	/** The table readers look ids up in, null until the files are open. */
+	private volatile Table mTable;
 
 	public MiniThumbFile(Uri uri) {
 		mUri = uri;
-		mBuffer = ByteBuffer.allocateDirect(BYTES_PER_MINTHUMB);
 	}
 
 	protected static synchronized void reset() {
@@ -64,13 +144,23 @@ public class MiniThumbFile {
 	}
 
 	private String randomAccessFilePath(int version) {
-		String directoryName = Environment.getExternalStorageDirectory().toString() + "/"
-				+ Video.Thumbnails.THUMBNAILS_DIRECTORY;
-		return directoryName + "/.thumbdata" + version + "-" + mUri.hashCode();
+		return thumbnailsDirectory() + "/.thumbdata" + version + "-" + mUri.hashCode();
+	}
+
+	private String dataFilePath(int generation) {
+		return randomAccessFilePath(MINI_THUMB_DATA_FILE_VERSION) + "." + generation;
+	}
+
+	private String indexFilePath(int version) {
+		return thumbnailsDirectory() + "/.thumbindex" + version + "-" + mUri.hashCode();
+	}
+
+	private static String thumbnailsDirectory() {
+		return Environment.getExternalStorageDirectory().toString() + "/" + Video.Thumbnails.THUMBNAILS_DIRECTORY;
 	}
 
-	private void removeOldFile() {
-		String oldPath = randomAccessFilePath(MINI_THUMB_DATA_FILE_VERSION - 1);
+	private void removeOldFile(int version) {
+		String oldPath = randomAccessFilePath(version);
 		File oldFile = new File(oldPath);
 		if (oldFile.exists()) {
 			try {
@@ -80,94 +170,487 @@ public class MiniThumbFile {
 		}
 	}
 
-	private RandomAccessFile miniThumbDataFile() {
-		if (mMiniThumbFile == null) {
-			removeOldFile();
-			String path = randomAccessFilePath(MINI_THUMB_DATA_FILE_VERSION);
-			File directory = new File(path).getParentFile();
-			if (!directory.isDirectory()) {
-				if (!directory.mkdirs())
-					Log.e("Unable to create .thumbnails directory %s", directory.toString());
+	/**
+	 * @return false if the files can't be opened, even read-only
+	 */
+	private boolean open() {
+		if (mIndexFile != null)
+			return true;
+		if (mOpenFailedAt != 0 && System.nanoTime() - mOpenFailedAt < OPEN_RETRY_NANOS)
+			return false;
+		mOpenFailedAt = 0;
+
+		removeOldFile(MINI_THUMB_DATA_FILE_VERSION - 2);
+		File index = new File(indexFilePath(MINI_THUMB_DATA_FILE_VERSION));
+		File directory = index.getParentFile();
+		if (!directory.isDirectory()) {
+			if (!directory.mkdirs())
+				Log.e("Unable to create .thumbnails directory %s", directory.toString());
+		}
+
+		for (int attempt = 0;; attempt++) {
+			mIndexFile = openFile(index);
+			if (mIndexFile == null) {
+				openFailed();
+				return false;
 			}
-			File f = new File(path);
+			mIndexChannel = mIndexFile.getChannel();
+			mWriteTable = new Table(128);
+
+			FileLock lock = null;
+			boolean retry = false;
+			boolean failed = false;
+			boolean interrupted = false;
 			try {
-				mMiniThumbFile = new RandomAccessFile(f, "rw");
+				lock = lockForWrite();
+				int generation = readGeneration(mIndexChannel, INDEX_MAGIC);
+				if (generation < 0 && generation != BAD_HEADER) {
+					if (attempt < MAX_REOPENS) {
+						// Compacted while we waited for the lock, the path
+						// names the new index now
+						retry = true;
+						continue;
+					}
+					// Left by a compaction that died before replacing it
+					generation = ~generation;
+					if (lock != null)
+						writeGeneration(mIndexChannel, generation);
+				}
+				if (!openData(generation, lock != null)) {
+					failed = true;
+					return false;
+				}
+				loadIndex();
+				if (lock != null) {
+					// A compaction that died after replacing the index leaves
+					// the previous data file
+					if (mGeneration > 0)
+						new File(dataFilePath(mGeneration - 1)).delete();
+					// Decided under the lock, so only one process migrates
+					File legacy = new File(randomAccessFilePath(MINI_THUMB_DATA_FILE_VERSION - 1));
+					if (mWriteTable.ids == 0 && legacy.isFile()) {
+						migrate(legacy);
+						removeOldFile(MINI_THUMB_DATA_FILE_VERSION - 1);
+					}
+					if (mDeadBytes > mLiveBytes && mDeadBytes > COMPACT_MIN_DEAD_BYTES)
+						compact();
+				}
+			} catch (ClosedByInterruptException ex) {
+				// Not the storage's fault, the next caller opens them
+				failed = interrupted = true;
+			} catch (FileLockInterruptionException ex) {
+				failed = interrupted = true;
 			} catch (IOException ex) {
-				try {
-					mMiniThumbFile = new RandomAccessFile(f, "r");
-				} catch (IOException ex2) {
+				Log.e("Got exception opening thumbnail files: ", ex);
+				failed = mDataChannel == null;
+			} finally {
+				// Already released if the compaction closed the old index
+				release(lock);
+				if (retry || failed)
+					closeFiles();
+				if (failed) {
+					if (!interrupted)
+						openFailed();
+				} else if (!retry) {
+					mTable = mWriteTable;
 				}
 			}
+			return !failed;
+		}
+	}
 
-			if (mMiniThumbFile != null)
-				mChannel = mMiniThumbFile.getChannel();
+	/**
+	 * Open the data file of the index's generation, or start both files over
+	 * if either is missing or unreadable and they are writable.
+	 */
+	private boolean openData(int generation, boolean writable) throws IOException {
+		if (generation >= 0) {
+			File data = new File(dataFilePath(generation));
+			if (data.isFile())
+				mDataFile = openFile(data);
+			if (mDataFile != null && readGeneration(mDataFile.getChannel(), DATA_MAGIC) == generation) {
+				mDataChannel = mDataFile.getChannel();
+				mGeneration = generation;
+				return true;
+			}
+			IOUtils.closeSilently(mDataFile);
+			mDataFile = null;
 		}
-		return mMiniThumbFile;
+		if (!writable)
+			return false;
+
+		// New or unreadable: the index is meaningless without its data. Other
+		// processes holding the index see its generation change.
+		int fresh = generation >= 0 ? generation + 1 : 0;
+		mDataFile = openFile(new File(dataFilePath(fresh)));
+		if (mDataFile == null)
+			return false;
+		mDataChannel = mDataFile.getChannel();
+		writeHeader(mDataChannel, DATA_MAGIC, fresh);
+		writeHeader(mIndexChannel, INDEX_MAGIC, fresh);
+		mGeneration = fresh;
+		if (generation >= 0)
+			new File(dataFilePath(generation)).delete();
+		return true;
 	}
 
-	protected synchronized void deactivate() {
-		if (mMiniThumbFile != null) {
+	private void closeFiles() {
+		IOUtils.closeSilently(mDataFile);
+		IOUtils.closeSilently(mIndexFile);
+		mDataFile = null;
+		mIndexFile = null;
+		mDataChannel = null;
+		mIndexChannel = null;
+		mMap = null;
+		mIndexLoaded = 0;
+		mLiveBytes = mDeadBytes = 0;
+	}
+
+	private static RandomAccessFile openFile(File f) {
+		try {
+			return new RandomAccessFile(f, "rw");
+		} catch (IOException ex) {
 			try {
-				mMiniThumbFile.close();
-				mMiniThumbFile = null;
-			} catch (IOException ex) {
+				return new RandomAccessFile(f, "r");
+			} catch (IOException ex2) {
+				return null;
 			}
 		}
 	}
 
-	protected synchronized long getMagic(long id) {
-		RandomAccessFile r = miniThumbDataFile();
-		if (r != null) {
-			long pos = id * BYTES_PER_MINTHUMB;
-			FileLock lock = null;
+	/**
+	 * @return the exclusive lock on the index file, null if it is read-only
+	 */
+	private FileLock lockForWrite() throws IOException {
+		try {
+			return mIndexChannel.lock();
+		} catch (NonWritableChannelException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the exclusive lock on the current files, reopening them if
+	 *         another process replaced them; null if they are read-only or
+	 *         can't be opened
+	 */
+	private FileLock lockCurrent() throws IOException {
+		for (int attempt = 0; attempt <= MAX_REOPENS; attempt++) {
+			FileLock lock = lockForWrite();
+			if (lock == null || readGeneration(mIndexChannel, INDEX_MAGIC) == mGeneration)
+				return lock;
+			release(lock);
+			deactivate();
+			if (!open())
+				return null;
+		}
+		return null;
+	}
+
+	private static void release(FileLock lock) {
+		try {
+			if (lock != null)
+				lock.release();
+		} catch (IOException ex) {
+		}
+	}
+
+	/**
+	 * @return the generation in the header, BAD_HEADER if there is no valid
+	 *         header
+	 */
+	private static int readGeneration(FileChannel channel, int magic) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		readFully(channel, header, 0);
+		if (header.position() != FILE_HEADER_SIZE || header.getInt(0) != magic
+				|| header.getInt(4) != MINI_THUMB_DATA_FILE_VERSION)
+			return BAD_HEADER;
+		return header.getInt(GENERATION_OFFSET);
+	}
+
+	private static void writeHeader(FileChannel channel, int magic, int generation) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		header.putInt(magic);
+		header.putInt(MINI_THUMB_DATA_FILE_VERSION);
+		header.putInt(generation);
+		header.putInt(0);
+		header.flip();
+		channel.truncate(0);
+		channel.write(header, 0);
+	}
+
+	private static void writeGeneration(FileChannel channel, int generation) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		buffer.putInt(generation);
+		buffer.flip();
+		channel.write(buffer, GENERATION_OFFSET);
+		channel.force(false);
+	}
+
+	/**
+	 * Read into the buffer until it is full or the end of the file.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - start) <= 0)
+				break;
+		}
+	}
+
+	/**
+	 * Read the index entries appended since the last call, by this process or
+	 * another one.
+	 */
+	private void loadIndex() throws IOException {
+		long size = mIndexChannel.size();
+		if (mIndexLoaded == 0) {
+			if (readGeneration(mIndexChannel, INDEX_MAGIC) != mGeneration)
+				throw new IOException("bad thumbnail index header");
+			mIndexLoaded = FILE_HEADER_SIZE;
+		}
+		long end = mIndexLoaded + (size - mIndexLoaded) / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE;
+		if (end <= mIndexLoaded)
+			return;
+
+		long dataSize = mDataChannel.size();
+		ByteBuffer entries = ByteBuffer.allocate((int) Math.min(end - mIndexLoaded, INDEX_ENTRY_SIZE * 1024));
+		long pos = mIndexLoaded;
+		while (pos < end) {
+			entries.clear();
+			entries.limit((int) Math.min(entries.capacity(), end - pos));
+			readFully(mIndexChannel, entries, pos);
+			if (entries.position() == 0)
+				break;
+			entries.flip();
+			while (entries.remaining() >= INDEX_ENTRY_SIZE) {
+				long id = entries.getLong();
+				long offset = entries.getLong();
+				long magic = entries.getLong();
+				int length = entries.getInt();
+				// An entry whose record has not fully reached the disk is ignored
+				if (id >= 0 && offset >= FILE_HEADER_SIZE && length >= 0 && length <= BYTES_PER_MINTHUMB
+						&& offset + RECORD_HEADER_SIZE + length <= dataSize)
+					put(id, offset, magic, length);
+			}
+			pos += entries.limit();
+		}
+		mIndexLoaded = pos;
+	}
+
+	private void migrate(File legacy) {
+		RandomAccessFile old = null;
+		int count = 0;
+		try {
+			old = new RandomAccessFile(legacy, "r");
+			FileChannel channel = old.getChannel();
+			ByteBuffer slot = ByteBuffer.allocate(BYTES_PER_MINTHUMB);
+			long slots = (channel.size() + BYTES_PER_MINTHUMB - 1) / BYTES_PER_MINTHUMB;
+			for (long id = 0; id < slots; id++) {
+				slot.clear();
+				readFully(channel, slot, id * BYTES_PER_MINTHUMB);
+				if (slot.position() < HEADER_SIZE || slot.get(0) != 1)
+					continue;
+				long magic = slot.getLong(1);
+				int length = slot.getInt(1 + 8);
+				if (magic == 0 || length <= 0 || HEADER_SIZE + length > slot.position())
+					continue;
+				byte[] data = new byte[length];
+				slot.position(HEADER_SIZE);
+				slot.get(data);
+				append(data, id, magic);
+				count++;
+			}
+			Log.i("Migrated %d thumbnails from %s", count, legacy.toString());
+		} catch (IOException ex) {
+			Log.e("Got exception migrating thumbnails: ", ex);
+		} finally {
+			IOUtils.closeSilently(old);
+		}
+	}
+
+	/**
+	 * Copy the live records into files of the next generation and switch to
+	 * them. Called with the write lock held; closing the old index releases
+	 * it. If anything fails before the index is replaced, the new files are
+	 * deleted and the old ones are left as they were.
+	 */
+	private void compact() throws IOException {
+		int generation = mGeneration + 1;
+		File data = new File(dataFilePath(generation));
+		File index = new File(indexFilePath(MINI_THUMB_DATA_FILE_VERSION));
+		File indexTmp = new File(index.getPath() + ".tmp");
+		boolean written = false;
+		try {
+			RandomAccessFile newData = new RandomAccessFile(data, "rw");
+			RandomAccessFile newIndex = new RandomAccessFile(indexTmp, "rw");
 			try {
-				mBuffer.clear();
-				mBuffer.limit(1 + 8);
-
-				lock = mChannel.lock(pos, 1 + 8, true);
-				if (mChannel.read(mBuffer, pos) == 9) {
-					mBuffer.position(0);
-					if (mBuffer.get() == 1)
-						return mBuffer.getLong();
+				FileChannel dataOut = newData.getChannel();
+				FileChannel indexOut = newIndex.getChannel();
+				writeHeader(dataOut, DATA_MAGIC, generation);
+				writeHeader(indexOut, INDEX_MAGIC, generation);
+				ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + BYTES_PER_MINTHUMB);
+				ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+				long dataPos = FILE_HEADER_SIZE;
+				long indexPos = FILE_HEADER_SIZE;
+				Table table = mWriteTable;
+				for (int slot = 0; slot <= table.mask; slot++) {
+					long key = table.keys.get(slot);
+					if (key == 0)
+						continue;
+					int e = table.entries.get(slot) - 1;
+					int size = RECORD_HEADER_SIZE + table.lengths[e];
+					record.clear();
+					record.limit(size);
+					readFully(mDataChannel, record, table.offsets[e]);
+					record.flip();
+					dataOut.write(record, dataPos);
+					entry.clear();
+					entry.putLong(key - 1).putLong(dataPos).putLong(table.magics[e]).putInt(table.lengths[e]);
+					entry.flip();
+					indexOut.write(entry, indexPos);
+					dataPos += size;
+					indexPos += INDEX_ENTRY_SIZE;
 				}
-			} catch (IOException ex) {
-				Log.e("Got exception checking file magic: ", ex);
-			} catch (RuntimeException ex) {
-				Log.e("Got exception when reading magic, id = %d, disk full or mount read-only? %s", id, ex.getClass()
-						.toString());
+				dataOut.force(false);
+				indexOut.force(false);
 			} finally {
-				try {
-					if (lock != null)
-						lock.release();
-				} catch (IOException ex) {
-				}
+				newData.close();
+				newIndex.close();
+			}
+
+			// Retire the old index before it is replaced: the processes
+			// waiting for its lock see that once we release it
+			writeGeneration(mIndexChannel, ~mGeneration);
+			if (!indexTmp.renameTo(index)) {
+				writeGeneration(mIndexChannel, mGeneration);
+				throw new IOException("can't replace " + index);
+			}
+			written = true;
+		} finally {
+			if (!written) {
+				data.delete();
+				indexTmp.delete();
 			}
 		}
+
+		Log.i("Compacted thumbnails, %d bytes reclaimed", mDeadBytes);
+		File oldData = new File(dataFilePath(mGeneration));
+		int ids = mWriteTable.ids;
+		closeFiles();
+		oldData.delete();
+		mIndexFile = openFile(index);
+		mDataFile = openFile(data);
+		if (mDataFile == null || mIndexFile == null)
+			throw new IOException("can't reopen compacted thumbnails");
+		mIndexChannel = mIndexFile.getChannel();
+		mDataChannel = mDataFile.getChannel();
+		mGeneration = generation;
+		mWriteTable = new Table(ids + 128);
+		loadIndex();
+	}
+
+	protected synchronized void deactivate() {
+		if (mIndexFile != null) {
+			closeFiles();
+			mWriteTable = null;
+			mTable = null;
+		}
+		mOpenFailedAt = 0;
+	}
+
+	/**
+	 * Close the files if a channel was closed, which an interrupted read or
+	 * write does for all threads, so that the next call opens them again.
+	 */
+	private synchronized void channelClosed(ClosedChannelException ex) {
+		FileChannel data = mDataChannel;
+		FileChannel index = mIndexChannel;
+		if ((data != null && !data.isOpen()) || (index != null && !index.isOpen())) {
+			Log.e("Thumbnail files closed by %s, reopening", ex.getClass().getSimpleName());
+			deactivate();
+		}
+	}
+
+	private void openFailed() {
+		// Never 0, which means no failure
+		mOpenFailedAt = System.nanoTime() | 1;
+	}
+
+	/**
+	 * @return the table to look ids up in, null if the files can't be opened
+	 */
+	private Table table() {
+		Table table = mTable;
+		if (table != null)
+			return table;
+		synchronized (this) {
+			return open() ? mTable : null;
+		}
+	}
+
+	/**
+	 * @return the table with the entries other processes appended to the
+	 *         index, null if there are none
+	 */
+	private Table reload() throws IOException {
+		FileChannel index = mIndexChannel;
+		if (index == null)
+			return null;
+		boolean replaced = readGeneration(index, INDEX_MAGIC) != mGeneration;
+		if (!replaced && index.size() < mIndexLoaded + INDEX_ENTRY_SIZE)
+			return null;
+		synchronized (this) {
+			if (mTable == null)
+				return null;
+			if (replaced && readGeneration(mIndexChannel, INDEX_MAGIC) != mGeneration) {
+				// Compacted or started over by another process
+				deactivate();
+				return open() ? mTable : null;
+			}
+			loadIndex();
+			return mTable;
+		}
+	}
+
+	protected long getMagic(long id) {
+		try {
+			Table table = table();
+			if (table == null)
+				return 0;
+			int e = table.find(id);
+			if (e < 0 && (table = reload()) != null)
+				e = table.find(id);
+			if (e >= 0)
+				return table.magics[e];
+		} catch (ClosedChannelException ex) {
+			channelClosed(ex);
+		} catch (IOException ex) {
+			Log.e("Got exception checking file magic: ", ex);
+		} catch (RuntimeException ex) {
+			Log.e("Got exception when reading magic, id = %d, disk full or mount read-only? %s", id, ex.getClass()
+					.toString());
+		}
 		return 0;
 	}
 
 	protected synchronized void saveMiniThumbToFile(byte[] data, long id, long magic) throws IOException {
-		RandomAccessFile r = miniThumbDataFile();
-		if (r == null)
+		if (!open() || data == null || id < 0)
+			return;
+		if (data.length > BYTES_PER_MINTHUMB - HEADER_SIZE)
 			return;
 
-		long pos = id * BYTES_PER_MINTHUMB;
 		FileLock lock = null;
 		try {
-			if (data != null) {
-				if (data.length > BYTES_PER_MINTHUMB - HEADER_SIZE)
-					return;
-
-				mBuffer.clear();
-				mBuffer.put((byte) 1);
-				mBuffer.putLong(magic);
-				mBuffer.putInt(data.length);
-				mBuffer.put(data);
-				mBuffer.flip();
-
-				lock = mChannel.lock(pos, BYTES_PER_MINTHUMB, false);
-				mChannel.write(mBuffer, pos);
-			}
+			lock = lockCurrent();
+			if (lock == null)
+				return;
+			// Take the entries other processes appended, so ours comes last
+			loadIndex();
+			append(data, id, magic);
+		} catch (ClosedChannelException ex) {
+			channelClosed(ex);
+			throw ex;
 		} catch (IOException ex) {
 			Log.e("couldn't save mini thumbnail data for %d; %s", id, ex.getMessage());
 			throw ex;
@@ -175,46 +658,252 @@ public class MiniThumbFile {
 			Log.e("couldn't save mini thumbnail data for %d, disk full or mount read-only? %s", id, ex.getClass()
 					.toString());
 		} finally {
-			try {
-				if (lock != null)
-					lock.release();
-			} catch (IOException ex) {
-			}
+			release(lock);
 		}
 	}
 
-	protected synchronized byte[] getMiniThumbFromFile(long id, byte[] data) {
-		RandomAccessFile r = miniThumbDataFile();
-		if (r == null)
-			return null;
+	/**
+	 * Append the record and its index entry. Called with the write lock held.
+	 */
+	private void append(byte[] data, long id, long magic) throws IOException {
+		long offset = mDataChannel.size();
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+		record.putLong(id).putLong(magic).putInt(data.length).put(data);
+		record.flip();
+		while (record.hasRemaining())
+			mDataChannel.write(record, offset + record.position());
 
-		long pos = id * BYTES_PER_MINTHUMB;
-		FileLock lock = null;
+		// A partial entry left by a crash is overwritten
+		long indexPos = mIndexLoaded;
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		entry.putLong(id).putLong(offset).putLong(magic).putInt(data.length);
+		entry.flip();
+		while (entry.hasRemaining())
+			mIndexChannel.write(entry, indexPos + entry.position());
+		mIndexLoaded = indexPos + INDEX_ENTRY_SIZE;
+		put(id, offset, magic, data.length);
+		ThumbnailCache.getInstance().invalidate(id);
+	}
+
+	/**
+	 * @return where the thumbnail is stored in the data file, -1 if there is
+	 *         none. Reading thumbnails in the order of their offsets reads the
+	 *         file sequentially.
+	 */
+	protected long getOffset(long id) {
 		try {
-			mBuffer.clear();
-			lock = mChannel.lock(pos, BYTES_PER_MINTHUMB, true);
-			int size = mChannel.read(mBuffer, pos);
-			if (size > 1 + 8 + 4) {
-				mBuffer.position(9);
-				int length = mBuffer.getInt();
-
-				if (size >= 1 + 8 + 4 + length && data.length >= length) {
-					mBuffer.get(data, 0, length);
-					return data;
-				}
-			}
+			Table table = table();
+			if (table == null)
+				return -1;
+			int e = table.find(id);
+			if (e < 0 && (table = reload()) != null)
+				e = table.find(id);
+			if (e >= 0)
+				return table.offsets[e];
+		} catch (ClosedChannelException ex) {
+			channelClosed(ex);
+		} catch (IOException ex) {
+			Log.e("Got exception looking up thumbnail: ", ex);
+		} catch (RuntimeException ex) {
+			Log.e("Got exception looking up thumbnail, id = %d: %s", id, ex.getClass().toString());
+		}
+		return -1;
+	}
+
+	protected byte[] getMiniThumbFromFile(long id, byte[] data) {
+		return readMiniThumb(id, data) >= 0 ? data : null;
+	}
+
+	/**
+	 * Read a thumbnail into the start of data.
+	 *
+	 * @return the length of the thumbnail, -1 if there is none or it doesn't
+	 *         fit
+	 */
+	protected int readMiniThumb(long id, byte[] data) {
+		try {
+			Table table = table();
+			if (table == null)
+				return -1;
+			int e = table.find(id);
+			if (e < 0 && (table = reload()) != null)
+				e = table.find(id);
+			if (e < 0)
+				return -1;
+			int length = table.lengths[e];
+			if (data.length < length)
+				return -1;
+			return readRecord(id, table.offsets[e], length, data) ? length : -1;
+		} catch (ClosedChannelException ex) {
+			channelClosed(ex);
 		} catch (IOException ex) {
 			Log.e("got exception when reading thumbnail id = %d, exception: %s", id, ex.getMessage());
 		} catch (RuntimeException ex) {
 			Log.e("Got exception when reading thumbnail, id = %d, disk full or mount read-only? %s", id, ex.getClass()
 					.toString());
-		} finally {
-			try {
-				if (lock != null)
-					lock.release();
-			} catch (IOException ex) {
+		}
+		return -1;
+	}
+
+	/**
+	 * Copy the payload of a record into data, after checking its header.
+	 */
+	private boolean readRecord(long id, long offset, int length, byte[] data) throws IOException {
+		long end = offset + RECORD_HEADER_SIZE + length;
+		ByteBuffer map = mMap;
+		if (map == null || map.capacity() < end)
+			map = remap(end);
+		if (map != null) {
+			int pos = (int) offset;
+			if (map.getLong(pos) != id || map.getInt(pos + 8 + 8) != length)
+				return false;
+			ByteBuffer view = map.duplicate();
+			view.position(pos + RECORD_HEADER_SIZE);
+			view.get(data, 0, length);
+			return true;
+		}
+
+		FileChannel channel = mDataChannel;
+		if (channel == null)
+			return false;
+		ByteBuffer buffer = sReadBuffer.get();
+		buffer.clear();
+		buffer.limit(RECORD_HEADER_SIZE + length);
+		readFully(channel, buffer, offset);
+		if (buffer.hasRemaining() || buffer.getLong(0) != id || buffer.getInt(8 + 8) != length)
+			return false;
+		buffer.position(RECORD_HEADER_SIZE);
+		buffer.get(data, 0, length);
+		return true;
+	}
+
+	/**
+	 * @return a mapping of the data file covering at least the first end
+	 *         bytes, or null if the file is shorter or the part not mapped yet
+	 *         is too small to map again
+	 */
+	private synchronized ByteBuffer remap(long end) throws IOException {
+		MappedByteBuffer map = mMap;
+		if (map != null && map.capacity() >= end)
+			return map;
+		FileChannel channel = mDataChannel;
+		if (channel == null)
+			return null;
+		long size = channel.size();
+		if (size < end || size > Integer.MAX_VALUE)
+			return null;
+		if (map != null && size - map.capacity() < REMAP_MIN_BYTES)
+			return null;
+		map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		mMap = map;
+		return map;
+	}
+
+	/**
+	 * Add an entry, replacing the one of the same id. Called with this object
+	 * locked.
+	 */
+	private void put(long id, long offset, long magic, int length) {
+		Table table = mWriteTable;
+		if (table.used == table.offsets.length) {
+			table = table.rebuild();
+			mWriteTable = table;
+			if (mTable != null)
+				mTable = table;
+		}
+		int old = table.put(id, offset, magic, length);
+		if (old >= 0) {
+			mLiveBytes -= RECORD_HEADER_SIZE + table.lengths[old];
+			mDeadBytes += RECORD_HEADER_SIZE + table.lengths[old];
+		}
+		mLiveBytes += RECORD_HEADER_SIZE + length;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Open addressing table from id + 1, 0 marking free slots, to an entry of
+	 * the parallel arrays. An entry is written once, before the slot pointing
+	 * to it, and the slots are atomic, so readers see complete entries without
+	 * locking. Replacing an id adds an entry and points its slot to it. Once
+	 * the entries are used up, the writer builds a bigger table with the live
+	 * ones and publishes it, readers of the old one still finding valid data.
+	 */
+	private static final class Table {
+		final AtomicLongArray keys;
+		final AtomicIntegerArray entries;
+		final int mask;
+		final long[] offsets;
+		final long[] magics;
+		final int[] lengths;
+		/** Entries written, only accessed by the writer. */
+		int used;
+		/** Slots in use, only accessed by the writer. */
+		int ids;
+
+		Table(int capacity) {
+			// Twice as many slots as entries keeps the load under one half
+			int slots = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 1;
+			keys = new AtomicLongArray(slots);
+			entries = new AtomicIntegerArray(slots);
+			mask = slots - 1;
+			offsets = new long[slots / 2];
+			magics = new long[slots / 2];
+			lengths = new int[slots / 2];
+		}
+
+		/**
+		 * @return the entry of the id, -1 if there is none
+		 */
+		int find(long id) {
+			long key = id + 1;
+			int slot = hash(key) & mask;
+			long k;
+			while ((k = keys.get(slot)) != 0) {
+				if (k == key)
+					return entries.get(slot) - 1;
+				slot = (slot + 1) & mask;
 			}
+			return -1;
+		}
+
+		/**
+		 * @return the entry replaced, -1 if the id is new
+		 */
+		int put(long id, long offset, long magic, int length) {
+			int e = used++;
+			offsets[e] = offset;
+			magics[e] = magic;
+			lengths[e] = length;
+
+			long key = id + 1;
+			int slot = hash(key) & mask;
+			long k;
+			while ((k = keys.get(slot)) != 0 && k != key)
+				slot = (slot + 1) & mask;
+			int old = k == key ? entries.get(slot) - 1 : -1;
+			// The entry before the key, so a reader finding the key finds it
+			entries.set(slot, e + 1);
+			if (k == 0) {
+				keys.set(slot, key);
+				ids++;
+			}
+			return old;
+		}
+
+		Table rebuild() {
+			Table table = new Table(ids * 2);
+			for (int slot = 0; slot <= mask; slot++) {
+				long key = keys.get(slot);
+				if (key != 0) {
+					int e = entries.get(slot) - 1;
+					table.put(key - 1, offsets[e], magics[e], lengths[e]);
+				}
+			}
+			return table;
 		}
-		return null;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.provider;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The video thumbnails decoded by
+ * {@link MediaStore.Video.Thumbnails#getThumbnail(Context, android.content.ContentResolver, long, int, android.graphics.BitmapFactory.Options)}
+ * , kept per video and kind up to a byte limit, least recently used first
+ * out.
+ * <p>
+ * The cache is off until the application sets its size with
+ * {@link #setMaxSize(int)}. From then on the bitmaps returned for null options
+ * are shared by all callers, so they must not be recycled, modified or decoded
+ * into.
+ * </p>
+ * <p>
+ * Each entry remembers the magic of the thumbnail it was decoded from. A
+ * thumbnail saved again gets a new magic, so an entry whose magic no longer
+ * matches the one in {@link MiniThumbFile} is dropped, whichever process
+ * saved it. On Android 4.0 and later the cache registers for
+ * {@link ComponentCallbacks2#onTrimMemory(int)} and shrinks by itself;
+ * otherwise call {@link #trimMemory(int)} from the application.
+ * </p>
+ */
+public final class ThumbnailCache {
+	/**
+	 * Hit and miss counts since the cache was created or
+	 * {@link ThumbnailCache#resetStats()}.
+	 */
+	public static final class Stats {
+		public final long hits;
+		public final long misses;
+		public final long evictions;
+		public final int size;
+		public final int maxSize;
+
+		Stats(long hits, long misses, long evictions, int size, int maxSize) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.size = size;
+			this.maxSize = maxSize;
+		}
+
+		/**
+		 * @return hits / (hits + misses), 0 before any lookup
+		 */
+		public float hitRate() {
+			long lookups = hits + misses;
+			return lookups == 0 ? 0 : (float) hits / lookups;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("ThumbnailCache[hits=%d, misses=%d, hitRate=%.1f%%, evictions=%d, size=%d/%d]", hits,
+					misses, hitRate() * 100, evictions, size, maxSize);
+		}
+	}
+
+	private static final class Entry {
+		final Bitmap bitmap;
+		final long magic;
+		final int size;
+
+		Entry(Bitmap bitmap, long magic) {
+			this.bitmap = bitmap;
+			this.magic = magic;
+			this.size = bitmap.getRowBytes() * bitmap.getHeight();
+		}
+	}
+
+	private static ThumbnailCache sInstance;
+
+	private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+	private int mSize;
+	private int mMaxSize;
+	private long mHits;
+	private long mMisses;
+	private long mEvictions;
+	private boolean mRegistered;
+
+	private ThumbnailCache(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * @return the cache of this process, disabled until
+	 *         {@link #setMaxSize(int)} is called
+	 */
+	public static synchronized ThumbnailCache getInstance() {
+		if (sInstance == null)
+			sInstance = new ThumbnailCache(0);
+		return sInstance;
+	}
+
+	/**
+	 * @param maxSize
+	 *            the bytes of bitmaps kept, e.g. 1/16 of
+	 *            {@link Runtime#maxMemory()}; 0 disables the cache
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		mMaxSize = Math.max(0, maxSize);
+		trimTo(mMaxSize);
+	}
+
+	/**
+	 * Shrink the cache for a {@link ComponentCallbacks2#onTrimMemory(int)}
+	 * level: empty it when the process is likely to be killed or its UI is
+	 * hidden, halve it when the device runs low on memory.
+	 */
+	public synchronized void trimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+			trimTo(0);
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			trimTo(mMaxSize / 2);
+	}
+
+	public synchronized void evictAll() {
+		trimTo(0);
+	}
+
+	public synchronized Stats getStats() {
+		return new Stats(mHits, mMisses, mEvictions, mSize, mMaxSize);
+	}
+
+	public synchronized void resetStats() {
+		mHits = 0;
+		mMisses = 0;
+		mEvictions = 0;
+	}
+
+	/**
+	 * @return the bitmap decoded from the thumbnail with this magic, null if
+	 *         there is none
+	 */
+	synchronized Bitmap get(long origId, int kind, long magic) {
+		Long key = key(origId, kind);
+		Entry entry = mEntries.get(key);
+		if (entry != null && (entry.magic != magic || entry.bitmap.isRecycled())) {
+			mEntries.remove(key);
+			mSize -= entry.size;
+			entry = null;
+		}
+		if (entry == null) {
+			mMisses++;
+			return null;
+		}
+		mHits++;
+		return entry.bitmap;
+	}
+
+	synchronized void put(long origId, int kind, long magic, Bitmap bitmap) {
+		Entry entry = new Entry(bitmap, magic);
+		if (entry.size > mMaxSize)
+			return;
+		Entry old = mEntries.put(key(origId, kind), entry);
+		if (old != null)
+			mSize -= old.size;
+		mSize += entry.size;
+		trimTo(mMaxSize);
+	}
+
+	/**
+	 * Drop the bitmaps of a video whose thumbnail was saved again.
+	 */
+	synchronized void invalidate(long origId) {
+		remove(key(origId, MediaStore.Video.Thumbnails.MINI_KIND));
+		remove(key(origId, MediaStore.Video.Thumbnails.MICRO_KIND));
+	}
+
+	/**
+	 * Follow the memory trims of the application from Android 4.0 on.
+	 */
+	synchronized void register(Context ctx) {
+		if (mRegistered || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+			return;
+		Context app = ctx.getApplicationContext();
+		if (app == null)
+			return;
+		app.registerComponentCallbacks(new ComponentCallbacks2() {
+			@Override
+			public void onTrimMemory(int level) {
+				trimMemory(level);
+			}
+
+			@Override
+			public void onLowMemory() {
+				evictAll();
+			}
+
+			@Override
+			public void onConfigurationChanged(Configuration newConfig) {
+			}
+		});
+		mRegistered = true;
+	}
+
+	private static Long key(long origId, int kind) {
+		return (origId << 2) | kind;
+	}
+
+	private void remove(Long key) {
+		Entry entry = mEntries.remove(key);
+		if (entry != null)
+			mSize -= entry.size;
+	}
+
+	private void trimTo(int maxSize) {
+		// Evicted bitmaps may still be displayed, they are left to the GC
+		Iterator<Map.Entry<Long, Entry>> it = mEntries.entrySet().iterator();
+		while (mSize > maxSize && it.hasNext()) {
+			mSize -= it.next().getValue().size;
+			it.remove();
+			mEvictions++;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vov.vitamio.utils;
+
+/**
+ * Copy-on-write array of listeners. {@link #add(Object)} and
+ * {@link #remove(Object)} may be called from any thread; {@link #array()}
+ * returns a snapshot that is never modified, so dispatching iterates it
+ * without locking or allocating.
+ */
+public final class ListenerList<T> {
+	private static final Object[] EMPTY = new Object[0];
+
+	private volatile Object[] mListeners = EMPTY;
+
+	/**
+	 * @return false if the listener is null or already registered
+	 */
+	public synchronized boolean add(T listener) {
+		if (listener == null || indexOf(listener) >= 0)
+			return false;
+		Object[] old = mListeners;
+		Object[] listeners = new Object[old.length + 1];
+		System.arraycopy(old, 0, listeners, 0, old.length);
+		listeners[old.length] = listener;
+		mListeners = listeners;
+		return true;
+	}
+
+	/**
+	 * @return false if the listener was not registered
+	 */
+	public synchronized boolean remove(T listener) {
+		int index = indexOf(listener);
+		if (index < 0)
+			return false;
+		Object[] old = mListeners;
+		if (old.length == 1) {
+			mListeners = EMPTY;
+		} else {
+			Object[] listeners = new Object[old.length - 1];
+			System.arraycopy(old, 0, listeners, 0, index);
+			System.arraycopy(old, index + 1, listeners, index, old.length - index - 1);
+			mListeners = listeners;
+		}
+		return true;
+	}
+
+	public synchronized void clear() {
+		mListeners = EMPTY;
+	}
+
+	/**
+	 * @return the registered listeners, in registration order. The array must
+	 *         not be modified.
+	 */
+	public Object[] array() {
+		return mListeners;
+	}
+
+	public boolean isEmpty() {
+		return mListeners.length == 0;
+	}
+
+	private int indexOf(Object listener) {
+		Object[] listeners = mListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener)
+				return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vov.vitamio.utils;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future completed by whoever produces its result, rather than by running
+ * a task. The first of {@link #set(Object)}, {@link #setException(Throwable)}
+ * and {@link #cancel(boolean)} wins, the later calls return false.
+ */
+public class SettableFuture<V> implements Future<V> {
+	private static final int PENDING = 0;
+	private static final int SET = 1;
+	private static final int FAILED = 2;
+	private static final int CANCELLED = 3;
+
+	private int mState = PENDING;
+	private V mValue;
+	private Throwable mException;
+
+	public boolean set(V value) {
+		return complete(SET, value, null);
+	}
+
+	public boolean setException(Throwable exception) {
+		return complete(FAILED, null, exception);
+	}
+
+	/**
+	 * @param mayInterruptIfRunning
+	 *            ignored, there is no task to interrupt
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return complete(CANCELLED, null, null);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mState == CANCELLED;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return mState != PENDING;
+	}
+
+	@Override
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		while (mState == PENDING)
+			wait();
+		return result();
+	}
+
+	@Override
+	public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (mState == PENDING) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return result();
+	}
+
+	/**
+	 * Called once the future is completed, on the completing thread and
+	 * without holding its lock.
+	 */
+	protected void done() {
+	}
+
+	private boolean complete(int state, V value, Throwable exception) {
+		synchronized (this) {
+			if (mState != PENDING)
+				return false;
+			mState = state;
+			mValue = value;
+			mException = exception;
+			notifyAll();
+		}
+		done();
+		return true;
+	}
+
+	private V result() throws ExecutionException {
+		if (mState == CANCELLED)
+			throw new CancellationException();
+		if (mState == FAILED)
+			throw new ExecutionException(mException);
+		return mValue;
+	}
+}
@@ -29,6 +29,7 @@ import io.vov.vitamio.MediaPlayer.OnTimedTextListener;
 import io.vov.vitamio.MediaPlayer.OnVideoSizeChangedListener;
 import io.vov.vitamio.MediaPlayer.TrackInfo;
 import io.vov.vitamio.Vitamio;
+import io.vov.vitamio.utils.ListenerList;
 import io.vov.vitamio.utils.Log;
 import io.vov.vitamio.widget.MediaController.MediaPlayerControl;
 
@@ -215,6 +216,13 @@ public class VideoView extends SurfaceView implements MediaController.MediaPlaye
 	private OnTimedTextListener mOnTimedTextListener;
 	private OnInfoListener mOnInfoListener;
 	private OnBufferingUpdateListener mOnBufferingUpdateListener;
+	private final ListenerList<OnPreparedListener> mPreparedListeners = new ListenerList<OnPreparedListener>();
+	private final ListenerList<OnCompletionListener> mCompletionListeners = new ListenerList<OnCompletionListener>();
+	private final ListenerList<OnErrorListener> mErrorListeners = new ListenerList<OnErrorListener>();
+	private final ListenerList<OnBufferingUpdateListener> mBufferingUpdateListeners = new ListenerList<OnBufferingUpdateListener>();
+	private final ListenerList<OnSeekCompleteListener> mSeekCompleteListeners = new ListenerList<OnSeekCompleteListener>();
+	private final ListenerList<OnTimedTextListener> mTimedTextListeners = new ListenerList<OnTimedTextListener>();
+	private final ListenerList<OnInfoListener> mInfoListeners = new ListenerList<OnInfoListener>();
 	private int mCurrentBufferPercentage;
 	private long mSeekWhenPrepared; // recording the seek position while
 									// preparing
@@ -520,6 +528,7 @@ public class VideoView extends SurfaceView implements MediaController.MediaPlaye
 			mMediaPlayer.setOnInfoListener(mInfoListener);
 			mMediaPlayer.setOnSeekCompleteListener(mSeekCompleteListener);
 			mMediaPlayer.setOnTimedTextListener(mTimedTextListener);
+			addRegisteredListeners(mMediaPlayer);
 			mMediaPlayer.setDataSource(mContext, mUri, mHeaders);
 			mMediaPlayer.setDisplay(mSurfaceHolder);
 			mMediaPlayer.setBufferSize(mBufSize);
@@ -601,6 +610,113 @@ public class VideoView extends SurfaceView implements MediaController.MediaPlaye
 		mOnInfoListener = l;
 	}
 
+	/**
+	 * The addOn*Listener methods register additional callbacks on the
+	 * MediaPlayer, called after the VideoView has handled the event. They stay
+	 * registered across {@link #setVideoURI(Uri)} calls.
+	 */
+	public void addOnPreparedListener(OnPreparedListener l) {
+		if (mPreparedListeners.add(l) && mMediaPlayer != null)
+			mMediaPlayer.addOnPreparedListener(l);
+	}
+
+	public void removeOnPreparedListener(OnPreparedListener l) {
+		mPreparedListeners.remove(l);
+		if (mMediaPlayer != null)
+			mMediaPlayer.removeOnPreparedListener(l);
+	}
+
+	public void addOnCompletionListener(OnCompletionListener l) {
+		if (mCompletionListeners.add(l) && mMediaPlayer != null)
+			mMediaPlayer.addOnCompletionListener(l);
+	}
+
+	public void removeOnCompletionListener(OnCompletionListener l) {
+		mCompletionListeners.remove(l);
+		if (mMediaPlayer != null)
+			mMediaPlayer.removeOnCompletionListener(l);
+	}
+
+	public void addOnErrorListener(OnErrorListener l) {
+		if (mErrorListeners.add(l) && mMediaPlayer != null)
+			mMediaPlayer.addOnErrorListener(l);
+	}
+
+	public void removeOnErrorListener(OnErrorListener l) {
+		mErrorListeners.remove(l);
+		if (mMediaPlayer != null)
+			mMediaPlayer.removeOnErrorListener(l);
+	}
+
+	public void addOnBufferingUpdateListener(OnBufferingUpdateListener l) {
+		if (mBufferingUpdateListeners.add(l) && mMediaPlayer != null)
+			mMediaPlayer.addOnBufferingUpdateListener(l);
+	}
+
+	public void removeOnBufferingUpdateListener(OnBufferingUpdateListener l) {
+		mBufferingUpdateListeners.remove(l);
+		if (mMediaPlayer != null)
+			mMediaPlayer.removeOnBufferingUpdateListener(l);
+	}
+
+	public void addOnSeekCompleteListener(OnSeekCompleteListener l) {
+		if (mSeekCompleteListeners.add(l) && mMediaPlayer != null)
+			mMediaPlayer.addOnSeekCompleteListener(l);
+	}
+
+	public void removeOnSeekCompleteListener(OnSeekCompleteListener l) {
+		mSeekCompleteListeners.remove(l);
+		if (mMediaPlayer != null)
+			mMediaPlayer.removeOnSeekCompleteListener(l);
+	}
+
+	public void addOnTimedTextListener(OnTimedTextListener l) {
+		if (mTimedTextListeners.add(l) && mMediaPlayer != null)
+			mMediaPlayer.addOnTimedTextListener(l);
+	}
+
+	public void removeOnTimedTextListener(OnTimedTextListener l) {
+		mTimedTextListeners.remove(l);
+		if (mMediaPlayer != null)
+			mMediaPlayer.removeOnTimedTextListener(l);
+	}
+
+	public void addOnInfoListener(OnInfoListener l) {
+		if (mInfoListeners.add(l) && mMediaPlayer != null)
+			mMediaPlayer.addOnInfoListener(l);
+	}
+
+	public void removeOnInfoListener(OnInfoListener l) {
+		mInfoListeners.remove(l);
+		if (mMediaPlayer != null)
+			mMediaPlayer.removeOnInfoListener(l);
+	}
+
+	private void addRegisteredListeners(MediaPlayer mp) {
+		Object[] listeners;
+		listeners = mPreparedListeners.array();
+		for (int i = 0; i < listeners.length; i++)
+			mp.addOnPreparedListener((OnPreparedListener) listeners[i]);
+		listeners = mCompletionListeners.array();
+		for (int i = 0; i < listeners.length; i++)
+			mp.addOnCompletionListener((OnCompletionListener) listeners[i]);
+		listeners = mErrorListeners.array();
+		for (int i = 0; i < listeners.length; i++)
+			mp.addOnErrorListener((OnErrorListener) listeners[i]);
+		listeners = mBufferingUpdateListeners.array();
+		for (int i = 0; i < listeners.length; i++)
+			mp.addOnBufferingUpdateListener((OnBufferingUpdateListener) listeners[i]);
+		listeners = mSeekCompleteListeners.array();
+		for (int i = 0; i < listeners.length; i++)
+			mp.addOnSeekCompleteListener((OnSeekCompleteListener) listeners[i]);
+		listeners = mTimedTextListeners.array();
+		for (int i = 0; i < listeners.length; i++)
+			mp.addOnTimedTextListener((OnTimedTextListener) listeners[i]);
+		listeners = mInfoListeners.array();
+		for (int i = 0; i < listeners.length; i++)
+			mp.addOnInfoListener((OnInfoListener) listeners[i]);
+	}
+
 	public void release(boolean cleartargetstate) {
 		if (mMediaPlayer != null) {
 			mMediaPlayer.reset();